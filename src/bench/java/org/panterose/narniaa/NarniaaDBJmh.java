@@ -0,0 +1,142 @@
+package org.panterose.narniaa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH harness for {@link NarniaaDB#put(byte[], byte[])} and {@link NarniaaDB#get(byte[])}.
+ *
+ * Run with <code>mvn -Pbench test-compile exec:exec -Djmh.args="-prof gc -t 4 NarniaaDBJmh"</code>,
+ * the thread count is given with JMH's <code>-t</code> option.
+ * Throughput is reported in ops/s, the <code>bytes</code> counter gives the value bytes moved per second
+ * and the gc profiler the allocation rate.
+ *
+ * A fresh store is created in a temp directory for each iteration, so an append only put workload
+ * can't fill the disk across a long run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NarniaaDBJmh {
+
+	/** upper bound of data preloaded before each iteration */
+	private static final long MAX_PRELOAD = 256L << 20;
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({"1048576", "67108864"})
+		public int blockSize;
+
+		/** from a small record up to the 1 MB kryo serialised <code>Document</code> */
+		@Param({"64", "4096", "65536", "1000020"})
+		public int valueSize;
+
+		@Param({"4", "16"})
+		public int keySize;
+
+		@Param({"1024"})
+		public int keyCount;
+
+		@Param({"80"})
+		public int readPercent;
+
+		Path dir;
+		NarniaaDB db;
+		byte[] value;
+		int keys;
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			dir = Files.createTempDirectory("narniaa-jmh");
+			db = new NarniaaDB(dir.resolve("bench"), blockSize, true);
+			value = new byte[valueSize];
+			new Random(0).nextBytes(value);
+			keys = (int) Math.max(1, Math.min(keyCount, MAX_PRELOAD / valueSize));
+			byte[] key = new byte[keySize];
+			for (int i = 0; i < keys; i++) {
+				db.put(key(key, i), value);
+			}
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			db.close();
+			File[] files = dir.toFile().listFiles();
+			if (files != null) {
+				for (File file : files) file.delete();
+			}
+			dir.toFile().delete();
+		}
+
+		byte[] key(byte[] key, int i) {
+			ByteBuffer.wrap(key).putInt(0, i);
+			return key;
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		/** value bytes written or read */
+		public long bytes;
+
+		byte[] key;
+
+		@Setup(Level.Iteration)
+		public void reset(Store store) {
+			bytes = 0;
+			key = new byte[store.keySize];
+		}
+	}
+
+	@Benchmark
+	public boolean put(Store store, Counters counters) throws IOException {
+		int i = ThreadLocalRandom.current().nextInt(store.keys);
+		counters.bytes += store.valueSize;
+		return store.db.put(store.key(counters.key, i), store.value);
+	}
+
+	@Benchmark
+	public byte[] get(Store store, Counters counters) throws IOException {
+		int i = ThreadLocalRandom.current().nextInt(store.keys);
+		byte[] value = store.db.get(store.key(counters.key, i));
+		counters.bytes += value.length;
+		return value;
+	}
+
+	@Benchmark
+	public void mixed(Store store, Counters counters, Blackhole bh) throws IOException {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int i = random.nextInt(store.keys);
+		if (random.nextInt(100) < store.readPercent) {
+			bh.consume(store.db.get(store.key(counters.key, i)));
+		} else {
+			bh.consume(store.db.put(store.key(counters.key, i), store.value));
+		}
+		counters.bytes += store.valueSize;
+	}
+}
@@ -0,0 +1,110 @@
+package org.panterose.narniaa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write scaling of {@link NarniaaDB#put(byte[], byte[])}: the same random update workload run with 1 to 8
+ * writer threads, throughput should grow with the threads up to the cores or the disk. With
+ * {@link Durability#SYNC} the writers wait on the disk, concurrent writers should overlap their waits.
+ *
+ * Run with <code>mvn -Pbench test-compile exec:exec -Djmh.args="NarniaaDBScalingJmh"</code>, without the
+ * <code>-t</code> option which would override the thread count of each benchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NarniaaDBScalingJmh {
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		@Param({"64", "4096"})
+		public int valueSize;
+
+		@Param({"65536"})
+		public int keyCount;
+
+		@Param({"NONE", "SYNC"})
+		public Durability durability;
+
+		Path dir;
+		NarniaaDB db;
+		byte[] value;
+
+		@Setup(Level.Iteration)
+		public void open() throws IOException {
+			dir = Files.createTempDirectory("narniaa-jmh");
+			db = new NarniaaDB(dir.resolve("bench"), new NarniaaConfig().blockSize(1 << 26).deleteOnExit(true)
+					.durability(durability));
+			value = new byte[valueSize];
+			new Random(0).nextBytes(value);
+		}
+
+		@TearDown(Level.Iteration)
+		public void close() {
+			db.close();
+			File[] files = dir.toFile().listFiles();
+			if (files != null) {
+				for (File file : files) file.delete();
+			}
+			dir.toFile().delete();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Key {
+		final byte[] key = new byte[8];
+	}
+
+	private static boolean put(Store store, Key key) throws IOException {
+		ByteBuffer.wrap(key.key).putInt(0, ThreadLocalRandom.current().nextInt(store.keyCount));
+		return store.db.put(key.key, store.value);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean put1(Store store, Key key) throws IOException {
+		return put(store, key);
+	}
+
+	@Benchmark
+	@Threads(2)
+	public boolean put2(Store store, Key key) throws IOException {
+		return put(store, key);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean put4(Store store, Key key) throws IOException {
+		return put(store, key);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public boolean put8(Store store, Key key) throws IOException {
+		return put(store, key);
+	}
+}
@@ -0,0 +1,315 @@
+package org.panterose.narniaa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.LongStream;
+
+/**
+ * YCSB style load generator for {@link NarniaaDB}: a store of <code>records</code> keys is bulk loaded, then
+ * <code>threads</code> threads run a mix of reads, updates and inserts for <code>duration</code> seconds, with
+ * the keys drawn from a zipfian or a uniform distribution.
+ *
+ * With a target <code>rate</code>, each thread runs its operations on a fixed schedule and their latency is
+ * measured from the time they were due, not from the time they started: a stall delays the operations
+ * queued behind it and they all count it, there is no coordinated omission. The service times, from the
+ * start of each operation, are kept too. Without a rate the threads run flat out and both are the same.
+ *
+ * The throughput and the percentiles of each interval, then the percentiles of the whole run by operation,
+ * are written to <code>output</code> as CSV, the lines of the configuration starting with <code>#</code>.
+ *
+ * Run with <code>mvn -Pbench test-compile exec:exec -Dbench.main="org.panterose.narniaa.NarniaaLoadGenerator
+ * threads=8 rate=100000 read=0.95 update=0.05"</code>, the options being <code>name=value</code>:
+ * <ul>
+ * <li>path: store to load and run on, a temporary one deleted at the end by default</li>
+ * <li>records (100000), valueSize (100), threads (4), duration (30 s), interval (1 s)</li>
+ * <li>read (0.5), update (0.5), insert (0): proportions of the operations</li>
+ * <li>distribution: zipfian (default, constant 0.99) or uniform</li>
+ * <li>rate: operations per second over all the threads, 0 (default) for as fast as possible</li>
+ * <li>blockSize (2^26), durability (NONE), inPlaceUpdates (false), preallocateBlocks (0)</li>
+ * <li>output: narniaa-load-&lt;time&gt;.csv by default</li>
+ * </ul>
+ */
+public class NarniaaLoadGenerator {
+
+	private static final double ZIPFIAN_CONSTANT = 0.99;
+	private static final String[] OPERATIONS = { "read", "update", "insert" };
+
+	private final Map<String, String> options;
+	private final long records;
+	private final int valueSize;
+	private final int threads;
+	private final long duration;
+	private final long interval;
+	private final double read;
+	private final double update;
+	private final boolean zipfian;
+	private final double rate;
+
+	//each histogram by operation: read, update, insert
+	private final LatencyHistogram[] latencies = histograms();
+	private final LatencyHistogram[] serviceTimes = histograms();
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+	private final AtomicLong inserted = new AtomicLong();
+	private volatile boolean stopped;
+
+	public NarniaaLoadGenerator(Map<String, String> options) {
+		this.options = options;
+		this.records = Long.parseLong(option("records", "100000"));
+		this.valueSize = Integer.parseInt(option("valueSize", "100"));
+		this.threads = Integer.parseInt(option("threads", "4"));
+		this.duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+		this.interval = TimeUnit.SECONDS.toNanos(Long.parseLong(option("interval", "1")));
+		this.read = Double.parseDouble(option("read", "0.5"));
+		this.update = Double.parseDouble(option("update", "0.5"));
+		double insert = Double.parseDouble(option("insert", "0"));
+		if (Math.abs(read + update + insert - 1) > 1e-9) {
+			throw new IllegalArgumentException("read + update + insert must be 1: " + (read + update + insert));
+		}
+		String distribution = option("distribution", "zipfian");
+		if (!distribution.equals("zipfian") && !distribution.equals("uniform")) {
+			throw new IllegalArgumentException("Unknown distribution: " + distribution);
+		}
+		this.zipfian = distribution.equals("zipfian");
+		this.rate = Double.parseDouble(option("rate", "0"));
+	}
+
+	private String option(String name, String defaultValue) {
+		return options.getOrDefault(name, defaultValue);
+	}
+
+	private static LatencyHistogram[] histograms() {
+		LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		return histograms;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) throw new IllegalArgumentException("Options are name=value: " + arg);
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		new NarniaaLoadGenerator(options).run();
+	}
+
+	public void run() throws Exception {
+		NarniaaConfig config = new NarniaaConfig()
+				.blockSize(Integer.parseInt(option("blockSize", String.valueOf(1 << 26))))
+				.durability(Durability.valueOf(option("durability", "NONE")))
+				.inPlaceUpdates(Boolean.parseBoolean(option("inPlaceUpdates", "false")))
+				.preallocateBlocks(Integer.parseInt(option("preallocateBlocks", "0")));
+		Path directory = null;
+		Path path;
+		if (options.containsKey("path")) {
+			path = Paths.get(option("path", null));
+		} else {
+			directory = Files.createTempDirectory("narniaa-load");
+			path = directory.resolve("load");
+		}
+		File output = new File(option("output", "narniaa-load-" + System.currentTimeMillis() + ".csv"));
+		try (PrintWriter out = new PrintWriter(output, "UTF-8")) {
+			out.println("# " + new TreeMap<>(options));
+			out.println("# " + config);
+			try (NarniaaDB db = open(path, config)) {
+				out.println("# loaded " + db.size() + " keys");
+				out.println("seconds,operations,throughput,p50,p99,p999,max");
+				runPhase(db, out);
+				out.println();
+				out.println("operation,latency,count,mean,p50,p90,p99,p999,p9999,max");
+				for (int op = 0; op < OPERATIONS.length; op++) {
+					summary(out, OPERATIONS[op], "intended", latencies[op]);
+					summary(out, OPERATIONS[op], "service", serviceTimes[op]);
+				}
+			}
+		} finally {
+			if (directory != null) delete(directory.toFile());
+		}
+		System.out.println("Results in " + output.getAbsolutePath());
+	}
+
+	/**
+	 * load the records into a new store, or open the existing one as it is.
+	 */
+	private NarniaaDB open(Path path, NarniaaConfig config) throws IOException {
+		File log = new File(path.toFile().getParentFile(), path.toFile().getName() + ".vidx");
+		if (log.exists()) return new NarniaaDB(path, config);
+		System.out.println("Loading " + records + " records");
+		Random random = new Random(0);
+		byte[] value = new byte[valueSize];
+		random.nextBytes(value);
+		return new NarniaaLoader(path, config, threads).load(
+				LongStream.range(0, records).mapToObj(i -> new SimpleEntry<>(key(i), value)));
+	}
+
+	private void runPhase(NarniaaDB db, PrintWriter out) throws Exception {
+		Zipfian keys = zipfian ? new Zipfian(records, ZIPFIAN_CONSTANT) : null;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			SplittableRandom random = new SplittableRandom(t);
+			workers.add(executor.submit(() -> {
+				work(db, keys, random, start);
+				return null;
+			}));
+		}
+		long[] last = new long[OPERATIONS.length];
+		for (long next = start + interval; next <= start + duration; next += interval) {
+			LockSupport.parkNanos(next - System.nanoTime());
+			long operations = 0;
+			for (int op = 0; op < OPERATIONS.length; op++) {
+				long count = latencies[op].count();
+				operations += count - last[op];
+				last[op] = count;
+			}
+			double seconds = (double) (System.nanoTime() - start) / TimeUnit.SECONDS.toNanos(1);
+			out.printf("%.1f,%d,%.0f,%d,%d,%d,%d%n", seconds, operations,
+					operations * (double) TimeUnit.SECONDS.toNanos(1) / interval, intervalLatency.percentile(50),
+					intervalLatency.percentile(99), intervalLatency.percentile(99.9), intervalLatency.max());
+			//reset while being recorded to, a few operations may be lost to the next interval
+			intervalLatency.reset();
+			out.flush();
+		}
+		stopped = true;
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void work(NarniaaDB db, Zipfian keys, SplittableRandom random, long start) throws IOException {
+		//each thread takes its share of the rate, its operations are due at fixed times
+		long period = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+		byte[] value = new byte[valueSize];
+		for (long n = 0; !stopped; n++) {
+			long due = start + n * period;
+			if (period > 0) {
+				long wait = due - System.nanoTime();
+				if (wait > 0) LockSupport.parkNanos(wait);
+				if (stopped) return;
+			}
+			long started = System.nanoTime();
+			if (period == 0) due = started;
+			double dice = random.nextDouble();
+			int op;
+			if (dice < read) {
+				op = 0;
+				db.get(key(nextKey(keys, random)));
+			} else if (dice < read + update) {
+				op = 1;
+				value[0] = (byte) n;
+				db.put(key(nextKey(keys, random)), value);
+			} else {
+				op = 2;
+				value[0] = (byte) n;
+				db.put(key(records + inserted.getAndIncrement()), value);
+			}
+			long end = System.nanoTime();
+			latencies[op].record(end - due);
+			intervalLatency.record(end - due);
+			serviceTimes[op].record(end - started);
+		}
+	}
+
+	/**
+	 * @return a key among the loaded records, the zipfian ranks are scrambled so the hot keys are spread
+	 */
+	private long nextKey(Zipfian keys, SplittableRandom random) {
+		if (keys == null) return random.nextLong(records);
+		return Math.floorMod(fnv(keys.next(random)), records);
+	}
+
+	private static long fnv(long value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+	private static byte[] key(long i) {
+		return ByteBuffer.allocate(8).putLong(i).array();
+	}
+
+	private static void summary(PrintWriter out, String operation, String latency, LatencyHistogram histogram) {
+		out.printf("%s,%s,%d,%.0f,%d,%d,%d,%d,%d,%d%n", operation, latency, histogram.count(), histogram.mean(),
+				histogram.percentile(50), histogram.percentile(90), histogram.percentile(99),
+				histogram.percentile(99.9), histogram.percentile(99.99), histogram.max());
+		if (histogram.count() > 0) {
+			System.out.printf("%-6s %-8s %10d ops  p50 %8d  p99 %8d  p99.9 %8d  max %10d ns%n", operation, latency,
+					histogram.count(), histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9),
+					histogram.max());
+		}
+	}
+
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) file.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * zipfian ranks over [0, items), rank 0 the most frequent, as generated by YCSB after Gray et al.,
+	 * "Quickly generating billion-record synthetic databases".
+	 */
+	static class Zipfian {
+		private final long items;
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		Zipfian(long items, double theta) {
+			this.items = items;
+			this.theta = theta;
+			this.zetan = zeta(items, theta);
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+
+		long next(SplittableRandom random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) return 0;
+			if (uz < 1 + Math.pow(0.5, theta)) return 1;
+			return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+}
@@ -0,0 +1,940 @@
+package org.panterose.narniaa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import net.openhft.lang.io.VanillaMappedBytes;
+import net.openhft.lang.io.VanillaMappedFile;
+import net.openhft.lang.io.VanillaMappedMode;
+
+import org.panterose.narniaa.NarniaaDB.BeniEntry;
+
+/**
+ * In-heap index of the store: key to (valueOffset, valueSize, keyOffset).
+ *
+ * Open addressing tables of primitive longs split in segments, no object is kept per key. A slot is
+ * 4 longs: the offset of the key record in the <code>.vidx</code> log (+1, 0 means empty), the hash of the key,
+ * the value offset and the value size. Keys are not kept on heap, they are compared against the log through
+ * the {@link IndexView}.
+ *
+ * Lookups are optimistic reads on the segment lock and don't allocate, writers take the segment write lock.
+ * Writers pass a {@link RecordWriter} that appends the log record of the change while the segment is locked:
+ * the records of a key are then in the log in the order their changes are published, and replaying the log
+ * gives the same last writer as the live index.
+ *
+ * The tables can be saved to a hash file and mapped back by {@link #load(File, long, Consumer)}: the segments are then
+ * served straight from the mapped file until they need to grow. As for the {@link IndexView}, replaced
+ * mappings are left to the GC rather than released under the feet of optimistic readers.
+ */
+public class BeniIndex {
+
+	static final int SLOT = 4;
+	static final int REF = 0;
+	static final int HASH = 1;
+	static final int VALUE_OFFSET = 2;
+	static final int VALUE_SIZE = 3;
+
+	private static final int SEGMENT_BITS = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	//hash file layout: header, segment directory (capacity, size), the slots of each segment, then the
+	//number of longs of the trailer and the trailer
+	private static final long MAGIC = 0x4e41524e48415348L; // NARNHASH
+	private static final int VERSION = 2;
+	private static final int CLEAN = 1;
+	private static final int DIRTY = 0;
+	private static final int STATE_POSITION = 12;
+	private static final int HEADER_SIZE = 8 + 4 + 4 + 8 + 8 + 4 + 4;
+	private static final int DIRECTORY_ENTRY = 8 + 8;
+
+	//replaced by rewrite(), readers on the replaced view fail their validation
+	private volatile IndexView view;
+	private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+	private VanillaMappedFile mapped;
+	private volatile ChangeListener listener;
+
+	public BeniIndex(IndexView view) {
+		this.view = view;
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(new HeapTable(INITIAL_CAPACITY * SLOT));
+		}
+	}
+
+	/**
+	 * polynomial hash of the key bytes, finished with the murmur3 mixer so both high bits (segment) and
+	 * low bits (slot) are well spread.
+	 */
+	public static int hash(byte[] key) {
+		return hash(key, 0, key.length);
+	}
+
+	/**
+	 * @return the hash of the key held by bytes[from, from + length)
+	 */
+	public static int hash(byte[] bytes, int from, int length) {
+		int h = 1;
+		for (int i = from; i < from + length; i++)
+			h = 31 * h + bytes[i];
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private Segment segment(int hash) {
+		return segments[segmentOf(hash)];
+	}
+
+	/**
+	 * @return the segment of the keys of this hash, see {@link #forEach(int, EntryVisitor, Runnable)}
+	 */
+	public static int segmentOf(int hash) {
+		return hash >>> (32 - SEGMENT_BITS);
+	}
+
+	public int segments() {
+		return segments.length;
+	}
+
+	/**
+	 * @param listener: told of the entries replaced or removed from now on, null for none
+	 */
+	public void listener(ChangeListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * run the action with all the segments locked: no writer is between appending its record and publishing
+	 * its entry meanwhile.
+	 */
+	public <T> T exclusive(Supplier<T> action) {
+		long[] stamps = new long[segments.length];
+		try {
+			lockAll(stamps);
+			return action.get();
+		} finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/**
+	 * move every entry to its record in a new log, with all the segments locked. The entries are left as
+	 * they were if the rewriter fails.
+	 */
+	public void rewrite(LogRewriter rewriter) throws IOException {
+		long[] stamps = new long[segments.length];
+		try {
+			lockAll(stamps);
+			long[][] moved = new long[segments.length][];
+			for (int s = 0; s < segments.length; s++) {
+				Table table = segments[s].table;
+				moved[s] = new long[table.length() / SLOT];
+				for (int slot = 0; slot < table.length(); slot += SLOT) {
+					long ref = table.get(slot + REF);
+					if (ref == 0) continue;
+					moved[s][slot / SLOT] = rewriter.write(ref - 1, table.get(slot + VALUE_OFFSET), table.get(slot + VALUE_SIZE));
+				}
+			}
+			view = rewriter.swap();
+			for (int s = 0; s < segments.length; s++) {
+				Table table = segments[s].table;
+				for (int slot = 0; slot < table.length(); slot += SLOT) {
+					if (table.get(slot + REF) != 0) table.set(slot + REF, moved[s][slot / SLOT] + 1);
+				}
+			}
+		} finally {
+			unlockAll(stamps);
+		}
+	}
+
+	private void lockAll(long[] stamps) {
+		for (int s = 0; s < segments.length; s++) {
+			stamps[s] = segments[s].writeLock();
+		}
+	}
+
+	private void unlockAll(long[] stamps) {
+		for (int s = segments.length - 1; s >= 0; s--) {
+			if (stamps[s] != 0) segments[s].unlockWrite(stamps[s]);
+		}
+	}
+
+	/**
+	 * @param key: key use for lookup
+	 * @param into: filled with valueOffset, valueSize and keyOffset when the key is found
+	 * @return true if the key is in the index
+	 */
+	public boolean lookup(byte[] key, long[] into) {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.tryOptimisticRead();
+		if (stamp != 0) {
+			boolean found = segment.lookup(key, hash, into);
+			if (segment.validate(stamp)) return found;
+		}
+		stamp = segment.readLock();
+		try {
+			return segment.lookup(key, hash, into);
+		} finally {
+			segment.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the entry for this key, null if the key is not in the index
+	 */
+	public BeniEntry get(byte[] key) {
+		long[] into = new long[3];
+		return lookup(key, into) ? new BeniEntry(into[0], into[1], into[2]) : null;
+	}
+
+	/**
+	 * @return offset of the record of this key in the log, -1 if the key is not in the index
+	 */
+	public long keyOffset(byte[] key) {
+		long[] into = new long[3];
+		return lookup(key, into) ? into[2] : -1;
+	}
+
+	/**
+	 * insert or replace the entry of this key, its record must already be written at keyOffset.
+	 * @return true if the key was already in the index
+	 */
+	public boolean put(byte[] key, long valueOffset, long valueSize, long keyOffset) {
+		return put(key, valueOffset, valueSize, keyOffset, null);
+	}
+	
+	/**
+	 * insert or replace the entry of this key, its record must already be written at keyOffset.
+	 * @param previous: if not null, filled with valueOffset, valueSize and keyOffset of the replaced entry
+	 * @return true if the key was already in the index
+	 */
+	public boolean put(byte[] key, long valueOffset, long valueSize, long keyOffset, long[] previous) {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.put(key, hash, valueOffset, valueSize, keyOffset, previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * insert or replace the entry of this key, its record is appended by the writer under the segment lock.
+	 * @param previous: if not null, filled with valueOffset, valueSize and keyOffset of the replaced entry
+	 * @return true if the key was already in the index
+	 */
+	public boolean put(byte[] key, long valueOffset, long valueSize, RecordWriter record, long[] previous) throws IOException {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.put(key, hash, valueOffset, valueSize, record.write(), previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * remove the entry of this key.
+	 * @param previous: if not null, filled with valueOffset, valueSize and keyOffset of the removed entry
+	 * @return true if the key was in the index
+	 */
+	public boolean remove(byte[] key, long[] previous) {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.remove(key, hash, previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * remove the entry of this key, its tombstone is appended by the writer under the segment lock only if the
+	 * key is in the index.
+	 * @param previous: if not null, filled with valueOffset, valueSize and keyOffset of the removed entry
+	 * @return true if the key was in the index
+	 */
+	public boolean remove(byte[] key, RecordWriter record, long[] previous) throws IOException {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			Table table = segment.table;
+			int slot = segment.find(table, key, hash);
+			if (slot < 0 || table.get(slot + REF) == 0) return false;
+			long removal = record.write();
+			ChangeListener listener = this.listener;
+			if (listener != null) {
+				listener.changed(key, table.get(slot + REF) - 1, table.get(slot + VALUE_OFFSET), table.get(slot + VALUE_SIZE), removal);
+			}
+			return segment.remove(key, hash, previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * insert or replace several entries at once: all the segments involved are locked while they are
+	 * published, so readers see either none or all of them.
+	 * @param keyOffsets: offsets of the records, filled by the writer if there is one
+	 * @param records: if not null, appends the records of all the keys once the segments are locked
+	 * @param previous: filled with valueOffset and valueSize of each replaced entry, -1 for new keys
+	 * @return number of keys that were already in the index
+	 */
+	public int putAll(int count, byte[][] keys, long[] valueOffsets, long[] valueSizes, long[] keyOffsets,
+			RecordWriter records, long[] previous) throws IOException {
+		int[] hashes = new int[count];
+		boolean[] involved = new boolean[segments.length];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = hash(keys[i]);
+			involved[hashes[i] >>> (32 - SEGMENT_BITS)] = true;
+		}
+		long[] stamps = new long[segments.length];
+		long[] replaced = new long[3];
+		int existed = 0;
+		try {
+			//always in the same order
+			for (int s = 0; s < segments.length; s++) {
+				if (involved[s]) stamps[s] = segments[s].writeLock();
+			}
+			if (records != null) records.write();
+			for (int i = 0; i < count; i++) {
+				if (segment(hashes[i]).put(keys[i], hashes[i], valueOffsets[i], valueSizes[i], keyOffsets[i], replaced)) {
+					previous[2 * i] = replaced[0];
+					previous[2 * i + 1] = replaced[1];
+					existed++;
+				} else {
+					previous[2 * i] = -1;
+					previous[2 * i + 1] = -1;
+				}
+			}
+			return existed;
+		} finally {
+			for (int s = segments.length - 1; s >= 0; s--) {
+				if (stamps[s] != 0) segments[s].unlockWrite(stamps[s]);
+			}
+		}
+	}
+	
+	/**
+	 * replay the record at keyOffset, the records can be merged in any order and from several threads: the
+	 * entry of a key is only replaced by a later record. A removal stays in the index as an entry with a
+	 * {@link BeniRecord#TOMBSTONE} size, so an earlier record merged after it can't bring the key back, until
+	 * {@link #purge()}.
+	 * @param hash: hash of the key of the record
+	 * @return true if the record is the latest of its key so far
+	 */
+	public boolean merge(int hash, long keyOffset, long valueOffset, long valueSize) {
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.merge(hash, keyOffset, valueOffset, valueSize);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * drop the removals left by {@link #merge(int, long, long, long)}.
+	 * @return number of entries dropped
+	 */
+	public int purge() {
+		int purged = 0;
+		for (Segment segment : segments) {
+			long stamp = segment.writeLock();
+			try {
+				purged += segment.purge();
+			} finally {
+				segment.unlockWrite(stamp);
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * record a value rewritten where it is, if the entry of this key is still the one looked up: the record
+	 * appended by the writer under the segment lock replaces the one at keyOffset.
+	 * @return false if the entry was updated, moved or removed since it was looked up, nothing is written then
+	 */
+	public boolean update(byte[] key, long valueOffset, long keyOffset, RecordWriter record) throws IOException {
+		int hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			Table table = segment.table;
+			int slot = segment.find(table, key, hash);
+			if (slot < 0 || table.get(slot + REF) != keyOffset + 1 || table.get(slot + VALUE_OFFSET) != valueOffset) return false;
+			long newKeyOffset = record.write();
+			ChangeListener listener = this.listener;
+			if (listener != null) {
+				listener.changed(key, keyOffset, valueOffset, table.get(slot + VALUE_SIZE), newKeyOffset);
+			}
+			table.set(slot + REF, newKeyOffset + 1);
+			return true;
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * move the value of the entry recorded at keyOffset, if it is still at expectedValueOffset. The entry then
+	 * refers to the record appended by the writer under the segment lock.
+	 * @param record: may return -1 to give up the move, once the segment is locked
+	 * @return false if the entry was updated or removed in the meantime, nothing is written then
+	 */
+	public boolean relocate(int hash, long keyOffset, long expectedValueOffset, long valueOffset, RecordWriter record) throws IOException {
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			Table table = segment.table;
+			int slot = slot(table, hash, keyOffset);
+			if (slot < 0 || table.get(slot + VALUE_OFFSET) != expectedValueOffset) return false;
+			long newKeyOffset = record.write();
+			if (newKeyOffset < 0) return false;
+			ChangeListener listener = this.listener;
+			if (listener != null) {
+				listener.changed(null, keyOffset, expectedValueOffset, table.get(slot + VALUE_SIZE), newKeyOffset);
+			}
+			table.set(slot + VALUE_OFFSET, valueOffset);
+			table.set(slot + REF, newKeyOffset + 1);
+			return true;
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * @return the slot of the entry recorded at keyOffset, -1 if there is none
+	 */
+	private static int slot(Table table, int hash, long keyOffset) {
+		int mask = table.length() / SLOT - 1;
+		int index = hash & mask;
+		for (int probe = 0; probe <= mask; probe++) {
+			int slot = index * SLOT;
+			long ref = table.get(slot + REF);
+			if (ref == 0) return -1;
+			if (ref == keyOffset + 1) return slot;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * visit the entries of one segment, under its read lock: the visitor must not write to the index.
+	 * @param locked: run under the lock, before the entries are visited
+	 */
+	public void forEach(int segment, EntryVisitor visitor, Runnable locked) {
+		Segment s = segments[segment];
+		long stamp = s.readLock();
+		try {
+			locked.run();
+			Table table = s.table;
+			for (int slot = 0; slot < table.length(); slot += SLOT) {
+				long ref = table.get(slot + REF);
+				if (ref == 0) continue;
+				visitor.visit((int) table.get(slot + HASH), ref - 1, table.get(slot + VALUE_OFFSET), table.get(slot + VALUE_SIZE));
+			}
+		} finally {
+			s.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * visit every entry, one segment at a time under its read lock: the visitor must not write to the index.
+	 */
+	public void forEach(EntryVisitor visitor) {
+		for (Segment segment : segments) {
+			long stamp = segment.readLock();
+			try {
+				Table table = segment.table;
+				for (int slot = 0; slot < table.length(); slot += SLOT) {
+					long ref = table.get(slot + REF);
+					if (ref == 0) continue;
+					visitor.visit((int) table.get(slot + HASH), ref - 1, table.get(slot + VALUE_OFFSET), table.get(slot + VALUE_SIZE));
+				}
+			} finally {
+				segment.unlockRead(stamp);
+			}
+		}
+	}
+
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			long stamp = segment.readLock();
+			try {
+				size += segment.size;
+			} finally {
+				segment.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	public synchronized void clear() throws IOException {
+		for (Segment segment : segments) {
+			long stamp = segment.writeLock();
+			try {
+				segment.table = new HeapTable(INITIAL_CAPACITY * SLOT);
+				segment.size = 0;
+			} finally {
+				segment.unlockWrite(stamp);
+			}
+		}
+		unmap();
+	}
+
+	/**
+	 * write the tables to file, replacing it atomically. The file is marked clean and records the size of
+	 * the log and the end of the data it describes.
+	 * @param trailer: saved after the tables, given back by {@link #load(File, long, Consumer)}
+	 */
+	public synchronized void save(File file, long logSize, long valueMaxOffset, long[] trailer) throws IOException {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+			raf.setLength(0);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.nativeOrder());
+			buffer.putLong(MAGIC).putInt(VERSION).putInt(CLEAN).putLong(logSize).putLong(valueMaxOffset);
+			buffer.putInt(SEGMENT_BITS).putInt(0);
+			long[] stamps = new long[segments.length];
+			try {
+				for (int i = 0; i < segments.length; i++) {
+					stamps[i] = segments[i].readLock();
+					buffer.putLong(segments[i].table.length() / SLOT).putLong(segments[i].size);
+				}
+				for (Segment segment : segments) {
+					Table table = segment.table;
+					for (int i = 0; i < table.length(); i++) {
+						if (!buffer.hasRemaining()) {
+							drain(buffer, channel);
+						}
+						buffer.putLong(table.get(i));
+					}
+				}
+				if (!buffer.hasRemaining()) drain(buffer, channel);
+				buffer.putLong(trailer.length);
+				for (long value : trailer) {
+					if (!buffer.hasRemaining()) drain(buffer, channel);
+					buffer.putLong(value);
+				}
+				drain(buffer, channel);
+			} finally {
+				for (int i = 0; i < segments.length; i++) {
+					if (stamps[i] != 0) segments[i].unlockRead(stamps[i]);
+				}
+			}
+			channel.force(true);
+		}
+		unmap();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * map the tables saved in file, if it was cleanly saved for a log of this size. The file is marked dirty
+	 * as long as it is in use, so it is not trusted after a crash.
+	 * @param trailer: given the trailer saved with the tables, if they are loaded
+	 * @return the end of the data described by the saved index, -1 if the file is missing or stale
+	 */
+	public synchronized long load(File file, long logSize, Consumer<long[]> trailer) throws IOException {
+		if (!file.exists() || file.length() < HEADER_SIZE + segments.length * DIRECTORY_ENTRY) return -1;
+		VanillaMappedFile hashFile = new VanillaMappedFile(file, VanillaMappedMode.RW);
+		long directorySize = HEADER_SIZE + segments.length * DIRECTORY_ENTRY;
+		VanillaMappedBytes header = hashFile.bytes(0, directorySize);
+		if (header.readLong(0) != MAGIC || header.readInt(8) != VERSION || header.readInt(STATE_POSITION) != CLEAN
+				|| header.readLong(16) != logSize || header.readInt(32) != SEGMENT_BITS) {
+			header.release();
+			hashFile.close();
+			return -1;
+		}
+		long valueMaxOffset = header.readLong(24);
+		long position = directorySize;
+		Table[] tables = new Table[segments.length];
+		int[] sizes = new int[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			long capacity = header.readLong(HEADER_SIZE + i * DIRECTORY_ENTRY);
+			sizes[i] = (int) header.readLong(HEADER_SIZE + i * DIRECTORY_ENTRY + 8);
+			long length = capacity * SLOT * 8;
+			if (position + length > file.length()) {
+				header.release();
+				hashFile.close();
+				return -1;
+			}
+			tables[i] = new MappedTable(hashFile.bytes(position, length), (int) (capacity * SLOT));
+			position += length;
+		}
+		long[] saved = readTrailer(hashFile, position, file.length());
+		if (saved == null) {
+			header.release();
+			hashFile.close();
+			return -1;
+		}
+		header.writeInt(STATE_POSITION, DIRTY);
+		header.force();
+		header.release();
+
+		unmap();
+		for (int i = 0; i < segments.length; i++) {
+			long stamp = segments[i].writeLock();
+			try {
+				segments[i].table = tables[i];
+				segments[i].size = sizes[i];
+			} finally {
+				segments[i].unlockWrite(stamp);
+			}
+		}
+		this.mapped = hashFile;
+		trailer.accept(saved);
+		return valueMaxOffset;
+	}
+
+	/**
+	 * @return the trailer saved at position, null if the file ends before it
+	 */
+	private static long[] readTrailer(VanillaMappedFile hashFile, long position, long fileSize) throws IOException {
+		if (position + 8 > fileSize) return null;
+		long length = fileSize - position;
+		try (VanillaMappedBytes bytes = hashFile.bytes(position, length)) {
+			long count = bytes.readLong(0);
+			if (count < 0 || 8 + count * 8 != length) return null;
+			long[] trailer = new long[(int) count];
+			for (int i = 0; i < trailer.length; i++) {
+				trailer[i] = bytes.readLong(8 + i * 8L);
+			}
+			return trailer;
+		}
+	}
+
+	/**
+	 * move the segments still served from the hash file back on heap and close it.
+	 */
+	private void unmap() throws IOException {
+		if (mapped == null) return;
+		for (Segment segment : segments) {
+			long stamp = segment.writeLock();
+			try {
+				if (segment.table instanceof MappedTable) {
+					MappedTable table = (MappedTable) segment.table;
+					HeapTable heap = new HeapTable(table.length());
+					for (int i = 0; i < table.length(); i++) {
+						heap.set(i, table.get(i));
+					}
+					segment.table = heap;
+				}
+			} finally {
+				segment.unlockWrite(stamp);
+			}
+		}
+		mapped.close();
+		mapped = null;
+	}
+
+	public synchronized void close() throws IOException {
+		clear();
+	}
+
+	@SuppressWarnings("serial")
+	final class Segment extends StampedLock {
+		Table table;
+		int size;
+
+		Segment(Table table) {
+			this.table = table;
+		}
+
+		boolean lookup(byte[] key, int hash, long[] into) {
+			Table table = this.table;
+			int slot = find(table, key, hash);
+			if (slot < 0 || table.get(slot + REF) == 0) return false;
+			into[0] = table.get(slot + VALUE_OFFSET);
+			into[1] = table.get(slot + VALUE_SIZE);
+			into[2] = table.get(slot + REF) - 1;
+			return true;
+		}
+
+		boolean put(byte[] key, int hash, long valueOffset, long valueSize, long keyOffset, long[] previous) {
+			int slot = find(table, key, hash);
+			boolean existed = table.get(slot + REF) != 0;
+			ChangeListener listener = BeniIndex.this.listener;
+			if (existed && listener != null) {
+				listener.changed(key, table.get(slot + REF) - 1, table.get(slot + VALUE_OFFSET), table.get(slot + VALUE_SIZE), keyOffset);
+			}
+			if (existed && previous != null) {
+				previous[0] = table.get(slot + VALUE_OFFSET);
+				previous[1] = table.get(slot + VALUE_SIZE);
+				previous[2] = table.get(slot + REF) - 1;
+			}
+			if (!existed) {
+				if ((size + 1) * 4L > (table.length() / SLOT) * 3L) {
+					resize();
+					slot = find(table, key, hash);
+				}
+				size++;
+			}
+			table.set(slot + HASH, hash);
+			table.set(slot + VALUE_OFFSET, valueOffset);
+			table.set(slot + VALUE_SIZE, valueSize);
+			table.set(slot + REF, keyOffset + 1);
+			return existed;
+		}
+
+		boolean merge(int hash, long keyOffset, long valueOffset, long valueSize) {
+			int slot = find(table, keyOffset, hash);
+			long ref = table.get(slot + REF);
+			if (ref != 0 && ref - 1 > keyOffset) return false;
+			if (ref == 0) {
+				if ((size + 1) * 4L > (table.length() / SLOT) * 3L) {
+					resize();
+					slot = find(table, keyOffset, hash);
+				}
+				size++;
+			}
+			table.set(slot + HASH, hash);
+			table.set(slot + VALUE_OFFSET, valueOffset);
+			table.set(slot + VALUE_SIZE, valueSize);
+			table.set(slot + REF, keyOffset + 1);
+			return true;
+		}
+
+		/**
+		 * rebuild the table without the removed entries, rather than shifting the clusters for each of them.
+		 */
+		int purge() {
+			Table old = table;
+			int purged = 0;
+			for (int slot = 0; slot < old.length(); slot += SLOT) {
+				if (old.get(slot + REF) != 0 && old.get(slot + VALUE_SIZE) == BeniRecord.TOMBSTONE) purged++;
+			}
+			if (purged == 0) return 0;
+			HeapTable purgedTable = new HeapTable(old.length());
+			int mask = purgedTable.length() / SLOT - 1;
+			for (int slot = 0; slot < old.length(); slot += SLOT) {
+				if (old.get(slot + REF) == 0 || old.get(slot + VALUE_SIZE) == BeniRecord.TOMBSTONE) continue;
+				int index = (int) old.get(slot + HASH) & mask;
+				while (purgedTable.get(index * SLOT + REF) != 0) {
+					index = (index + 1) & mask;
+				}
+				for (int i = 0; i < SLOT; i++) {
+					purgedTable.set(index * SLOT + i, old.get(slot + i));
+				}
+			}
+			table = purgedTable;
+			size -= purged;
+			return purged;
+		}
+
+		/**
+		 * backward shift deletion: the entries following the removed one in its cluster are moved back so no
+		 * probe sequence is broken, without leaving tombstones in the table.
+		 */
+		boolean remove(byte[] key, int hash, long[] previous) {
+			Table table = this.table;
+			int slot = find(table, key, hash);
+			if (slot < 0 || table.get(slot + REF) == 0) return false;
+			if (previous != null) {
+				previous[0] = table.get(slot + VALUE_OFFSET);
+				previous[1] = table.get(slot + VALUE_SIZE);
+				previous[2] = table.get(slot + REF) - 1;
+			}
+			int mask = table.length() / SLOT - 1;
+			int hole = slot / SLOT;
+			int index = hole;
+			while (true) {
+				index = (index + 1) & mask;
+				int next = index * SLOT;
+				if (table.get(next + REF) == 0) break;
+				int home = (int) table.get(next + HASH) & mask;
+				//the entry can fill the hole if the hole is between its home slot and where it is
+				if (((index - home) & mask) >= ((index - hole) & mask)) {
+					for (int i = SLOT - 1; i >= 0; i--) {
+						table.set(hole * SLOT + i, table.get(next + i));
+					}
+					hole = index;
+				}
+			}
+			table.set(hole * SLOT + REF, 0);
+			size--;
+			return true;
+		}
+
+		/**
+		 * linear probing from the slot of the hash, bounded by the capacity as optimistic readers
+		 * may look at a table being modified.
+		 * @return position of the slot holding the key or of the first empty slot, -1 if none was found
+		 */
+		private int find(Table table, byte[] key, int hash) {
+			int capacity = table.length() / SLOT;
+			int mask = capacity - 1;
+			int index = hash & mask;
+			for (int probe = 0; probe < capacity; probe++) {
+				int slot = index * SLOT;
+				long ref = table.get(slot + REF);
+				if (ref == 0) return slot;
+				if ((int) table.get(slot + HASH) == hash && view.keyEquals(ref - 1, key)) return slot;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * as {@link #find(Table, byte[], int)}, for the key of the record at keyOffset, compared in place.
+		 */
+		private int find(Table table, long keyOffset, int hash) {
+			int capacity = table.length() / SLOT;
+			int mask = capacity - 1;
+			int index = hash & mask;
+			for (int probe = 0; probe < capacity; probe++) {
+				int slot = index * SLOT;
+				long ref = table.get(slot + REF);
+				if (ref == 0) return slot;
+				if ((int) table.get(slot + HASH) == hash && view.keyEquals(ref - 1, keyOffset)) return slot;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * double the table, the resized table is always on heap.
+		 */
+		private void resize() {
+			Table old = table;
+			HeapTable resized = new HeapTable(old.length() * 2);
+			int mask = resized.length() / SLOT - 1;
+			for (int slot = 0; slot < old.length(); slot += SLOT) {
+				if (old.get(slot + REF) == 0) continue;
+				int index = (int) old.get(slot + HASH) & mask;
+				while (resized.get(index * SLOT + REF) != 0) {
+					index = (index + 1) & mask;
+				}
+				for (int i = 0; i < SLOT; i++) {
+					resized.set(index * SLOT + i, old.get(slot + i));
+				}
+			}
+			table = resized;
+		}
+	}
+
+	/**
+	 * appends the log record of a change, called with the segments of the change locked.
+	 */
+	public interface RecordWriter {
+		/**
+		 * @return offset of the record in the log
+		 */
+		long write() throws IOException;
+	}
+	
+	/**
+	 * writes the records of the entries to a new log, called with all the segments locked, see
+	 * {@link BeniIndex#rewrite(LogRewriter)}.
+	 */
+	public interface LogRewriter {
+		/**
+		 * write the record of an entry to the new log.
+		 * @return offset of the record in the new log
+		 */
+		long write(long keyOffset, long valueOffset, long valueSize) throws IOException;
+
+		/**
+		 * put the new log in place of the old one once all the records are written.
+		 * @return view of the new log
+		 */
+		IndexView swap() throws IOException;
+	}
+	
+	/**
+	 * told of the entries replaced or removed by the writers, under the lock of their segment before the
+	 * change is visible.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @param key: key of the entry, null when the value is relocated, it is then the key recorded at keyOffset
+		 * @param keyOffset: offset of the record of the entry before the change
+		 * @param changeOffset: offset of the record of the change
+		 */
+		void changed(byte[] key, long keyOffset, long valueOffset, long valueSize, long changeOffset);
+	}
+	
+	public interface EntryVisitor {
+		void visit(int hash, long keyOffset, long valueOffset, long valueSize);
+	}
+	
+	/**
+	 * storage of the slots of a segment.
+	 */
+	static abstract class Table {
+		abstract long get(int index);
+		abstract void set(int index, long value);
+		abstract int length();
+	}
+
+	static final class HeapTable extends Table {
+		private final long[] slots;
+
+		HeapTable(int length) {
+			this.slots = new long[length];
+		}
+
+		@Override
+		long get(int index) {
+			return slots[index];
+		}
+
+		@Override
+		void set(int index, long value) {
+			slots[index] = value;
+		}
+
+		@Override
+		int length() {
+			return slots.length;
+		}
+	}
+
+	static final class MappedTable extends Table {
+		private final VanillaMappedBytes bytes;
+		private final int length;
+
+		MappedTable(VanillaMappedBytes bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		@Override
+		long get(int index) {
+			return bytes.readLong((long) index << 3);
+		}
+
+		@Override
+		void set(int index, long value) {
+			bytes.writeLong((long) index << 3, value);
+		}
+
+		@Override
+		int length() {
+			return length;
+		}
+	}
+}
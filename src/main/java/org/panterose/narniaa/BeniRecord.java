@@ -0,0 +1,191 @@
+package org.panterose.narniaa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+import net.openhft.lang.io.Bytes;
+
+/**
+ * Format of the records of the <code>.vidx</code> log:
+ * valueOffset (8), valueSize (8), keySize (4), key, crc (4), commit (4).
+ * A removal is recorded with a {@link #TOMBSTONE} value size, a {@link #PADDING} record fills the place of a
+ * torn one.
+ *
+ * The crc covers the header and the key, the commit marker closes the record: a record is only valid once
+ * both match, so a torn write is detected on recovery.
+ *
+ * An instance keeps the buffers to encode or check records, it must not be shared between threads.
+ */
+public class BeniRecord {
+
+	public static final int VALUE_SIZE_POSITION = 8;
+	public static final int KEY_SIZE_POSITION = 8 * 2;
+	public static final int KEY_POSITION = KEY_SIZE_POSITION + 4;
+	public static final int TRAILER = 4 + 4;
+	public static final int COMMIT = 0x4e415252; // NARR
+	public static final long TOMBSTONE = -1;
+	public static final long PADDING = -2;
+
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer header = ByteBuffer.allocate(KEY_POSITION).order(ByteOrder.nativeOrder());
+	private byte[] scratch = new byte[256];
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder());
+	private final BytesLog bytes = new BytesLog();
+
+	//bigger buffers are not kept by the thread
+	private static final int MAX_BUFFER = 1 << 20;
+
+	private static final ThreadLocal<BeniRecord> RECORDS = ThreadLocal.withInitial(BeniRecord::new);
+
+	/**
+	 * @return the record helper of the current thread
+	 */
+	public static BeniRecord get() {
+		return RECORDS.get();
+	}
+
+	public static int size(int keySize) {
+		return KEY_POSITION + keySize + TRAILER;
+	}
+
+	/**
+	 * @return an empty direct buffer in native order, to encode records of at least capacity bytes
+	 */
+	public ByteBuffer buffer(int capacity) {
+		if (capacity <= buffer.capacity()) {
+			buffer.clear();
+			return buffer;
+		}
+		ByteBuffer bigger = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+		if (capacity <= MAX_BUFFER) buffer = bigger;
+		return bigger;
+	}
+
+	/**
+	 * append a record to the buffer, which must be in native order.
+	 */
+	public void encode(ByteBuffer into, long valueOffset, long valueSize, byte[] key) {
+		header.clear();
+		header.putLong(valueOffset).putLong(valueSize).putInt(key.length);
+		crc.reset();
+		crc.update(header.array(), 0, KEY_POSITION);
+		crc.update(key, 0, key.length);
+		into.put(header.array(), 0, KEY_POSITION);
+		into.put(key);
+		into.putInt((int) crc.getValue());
+		into.putInt(COMMIT);
+	}
+
+	/**
+	 * close a record of fixed width in the buffer, which must be in native order: its crc then the commit
+	 * marker are written after the length bytes at position.
+	 */
+	public void seal(ByteBuffer record, int position, int length) {
+		record.putInt(position + length, crc(record, position, length));
+		record.putInt(position + length + 4, COMMIT);
+	}
+
+	/**
+	 * @return true if the record of fixed width at position was closed by {@link #seal(ByteBuffer, int, int)}
+	 */
+	public boolean sealed(ByteBuffer record, int position, int length) {
+		if (record.getInt(position + length + 4) != COMMIT) return false;
+		return record.getInt(position + length) == crc(record, position, length);
+	}
+
+	private int crc(ByteBuffer record, int position, int length) {
+		int start = record.position();
+		int limit = record.limit();
+		record.clear();
+		record.position(position).limit(position + length);
+		crc.reset();
+		crc.update(record);
+		record.limit(limit);
+		record.position(start);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * check the record at position, which must end before limit.
+	 * @return the size of the record, -1 if it is torn or corrupted
+	 */
+	public int check(Bytes log, long position, long limit) {
+		bytes.log = log;
+		try {
+			return check(bytes, position, limit);
+		} finally {
+			bytes.log = null;
+		}
+	}
+
+	/**
+	 * check the record at position of a log, which must be readable up to limit.
+	 * @return the size of the record, -1 if it is not complete yet, torn or corrupted
+	 */
+	public int check(Log log, long position, long limit) {
+		if (position + KEY_POSITION + TRAILER > limit) return -1;
+		int keySize = log.readInt(position + KEY_SIZE_POSITION);
+		if (keySize < 0 || position + size(keySize) > limit) return -1;
+		if (log.readVolatileInt(position + KEY_POSITION + keySize + 4) != COMMIT) return -1;
+		int length = KEY_POSITION + keySize;
+		if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+		log.readFully(position, scratch, 0, length);
+		crc.reset();
+		crc.update(scratch, 0, length);
+		if (log.readInt(position + length) != (int) crc.getValue()) return -1;
+		return size(keySize);
+	}
+
+	/**
+	 * @return the hash of the key of the record last checked, see {@link BeniIndex#hash(byte[])}
+	 */
+	public int checkedHash(int keySize) {
+		return BeniIndex.hash(scratch, KEY_POSITION, keySize);
+	}
+
+	/**
+	 * @return the key of the record last checked, as a new array
+	 */
+	public byte[] checkedKey(int keySize) {
+		byte[] key = new byte[keySize];
+		System.arraycopy(scratch, KEY_POSITION, key, 0, keySize);
+		return key;
+	}
+
+	/**
+	 * reads of a log checked by {@link BeniRecord#check(Log, long, long)}.
+	 */
+	public interface Log {
+		int readInt(long offset);
+
+		/**
+		 * read an int written by another thread or process, see {@link BeniRecord#COMMIT}.
+		 */
+		int readVolatileInt(long offset);
+
+		void readFully(long offset, byte[] into, int from, int length);
+	}
+
+	/**
+	 * a log mapped as {@link Bytes}, during the replay.
+	 */
+	private static final class BytesLog implements Log {
+		Bytes log;
+
+		@Override
+		public int readInt(long offset) {
+			return log.readInt(offset);
+		}
+
+		@Override
+		public int readVolatileInt(long offset) {
+			return log.readVolatileInt(offset);
+		}
+
+		@Override
+		public void readFully(long offset, byte[] into, int from, int length) {
+			log.readFully(offset, into, from, length);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.panterose.narniaa;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiPredicate;
+
+/**
+ * Iterator over the pairs of a range of keys, in key order, see {@link NarniaaDB#scan(byte[], byte[])}.
+ *
+ * Keys are taken from the sorted index by batches, the values of a batch are then read in the order of their
+ * offsets so each data block is acquired once per batch. A key updated during the scan may be returned with
+ * its old or its new value, a key removed is skipped if it is gone by the time its batch is read.
+ */
+public class BeniScan implements Iterator<Map.Entry<byte[], byte[]>> {
+
+	static final int BATCH = 64;
+
+	private final NarniaaDB db;
+	private final Iterator<byte[]> keys;
+	private final BiPredicate<byte[], long[]> lookup;
+	private final byte[][] batch = new byte[BATCH][];
+	private final byte[][] values = new byte[BATCH][];
+	private final long[] valueOffsets = new long[BATCH];
+	private final long[] valueSizes = new long[BATCH];
+	private final long[] entry = new long[3];
+	private int size;
+	private int next;
+
+	BeniScan(NarniaaDB db, Iterator<byte[]> keys) {
+		this(db, keys, db.entries::lookup);
+	}
+
+	/**
+	 * @param lookup: fills valueOffset and valueSize of a key, returns false if it is not there
+	 */
+	BeniScan(NarniaaDB db, Iterator<byte[]> keys, BiPredicate<byte[], long[]> lookup) {
+		this.db = db;
+		this.keys = keys;
+		this.lookup = lookup;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next < size) return true;
+		fill();
+		return next < size;
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		Map.Entry<byte[], byte[]> pair = new SimpleImmutableEntry<>(batch[next].clone(), values[next]);
+		batch[next] = null;
+		values[next++] = null;
+		return pair;
+	}
+
+	private void fill() {
+		size = 0;
+		next = 0;
+		int slot = db.epoch.enter();
+		try {
+			while (size < BATCH && keys.hasNext()) {
+				byte[] key = keys.next();
+				if (!lookup.test(key, entry)) continue;
+				batch[size] = key;
+				valueOffsets[size] = entry[0];
+				valueSizes[size++] = entry[1];
+			}
+			db.readValues(size, valueOffsets, valueSizes, values);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			db.epoch.exit(slot);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.panterose.narniaa;
+
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Optional sorted view of the keys of the store, for range and prefix scans. Keys are ordered by their bytes,
+ * compared unsigned.
+ *
+ * Only the keys are kept here, in a concurrent skip list, their entries stay in the {@link BeniIndex}. The set
+ * is changed under the segment lock of the key, along with the index, so it never misses a key of the index;
+ * it may hold a key a moment longer than the index and scans look each key up anyway.
+ *
+ * The keys of an index loaded or replayed on open are only added by the first scan, see
+ * {@link #build(BeniIndex, IndexView)}, so opening doesn't walk every entry.
+ */
+public class BeniSortedIndex {
+
+	public static final Comparator<byte[]> UNSIGNED = BeniSortedIndex::compare;
+
+	private final ConcurrentSkipListSet<byte[]> keys = new ConcurrentSkipListSet<>(UNSIGNED);
+	//false until the keys of the entries already in the index are added
+	private volatile boolean built = true;
+
+	/**
+	 * add the key, copied as callers may reuse their arrays.
+	 */
+	public void add(byte[] key) {
+		if (!keys.contains(key)) keys.add(key.clone());
+	}
+
+	public void remove(byte[] key) {
+		keys.remove(key);
+	}
+
+	/**
+	 * @param from: first key, inclusive, null to start from the first key
+	 * @param to: last key, exclusive, null to go up to the last key
+	 * @return the keys in this range, in order
+	 */
+	public NavigableSet<byte[]> range(byte[] from, byte[] to) {
+		if (from == null && to == null) return keys;
+		if (from == null) return keys.headSet(to, false);
+		if (to == null) return keys.tailSet(from, true);
+		if (compare(from, to) >= 0) return keys.subSet(from, true, from, false);
+		return keys.subSet(from, true, to, false);
+	}
+
+	/**
+	 * add the keys of the entries of the index, once after {@link #clear()}. The writers keep adding and
+	 * removing keys meanwhile: they do it under the lock of the segment of the key, the keys of a segment are
+	 * added under its read lock.
+	 */
+	public void build(BeniIndex entries, IndexView view) {
+		if (built) return;
+		synchronized (this) {
+			if (built) return;
+			entries.forEach((hash, keyOffset, valueOffset, valueSize) -> keys.add(view.key(keyOffset)));
+			built = true;
+		}
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * drop the keys, the next {@link #build(BeniIndex, IndexView)} adds those of the index.
+	 */
+	public synchronized void clear() {
+		keys.clear();
+		built = false;
+	}
+
+	/**
+	 * @return the first key after all the keys starting with prefix, null if there is none
+	 */
+	public static byte[] successor(byte[] prefix) {
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xff) {
+				byte[] next = new byte[i + 1];
+				System.arraycopy(prefix, 0, next, 0, i + 1);
+				next[i]++;
+				return next;
+			}
+		}
+		return null;
+	}
+
+	public static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) return diff;
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,197 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.openhft.lang.io.VanillaMappedBlocks;
+import net.openhft.lang.io.VanillaMappedBytes;
+import net.openhft.lang.io.VanillaMappedFile;
+
+/**
+ * Background work on the data blocks of a {@link NarniaaDB}, in one daemon thread.
+ *
+ * Preallocation: when the writers move to a new block, the next blocks are mapped, which grows the file,
+ * and each of their pages is touched, so the writers find them mapped and in the page cache instead of
+ * faulting every page of a fresh block. The pages are touched by a compare and swap of 0 with 0, which never
+ * changes what a writer may already have put there. The blocks prepared are handed to
+ * {@link NarniaaDB#acquire(long)} until the writers are past them.
+ *
+ * Read-ahead: when <code>get</code> moves to the block after the one it read last, the next blocks are read
+ * through the channel, one byte per page, to fill the page cache ahead of a reader sweeping the file.
+ */
+public class BlockAllocator implements Closeable {
+
+	private static final int PAGE = 4096;
+
+	private final VanillaMappedBlocks dataBlocks;
+	private final VanillaMappedFile mappedFile;
+	private final FileChannel dataChannel;
+	private final int blockSize;
+	private final int ahead;
+	private final int readAhead;
+	//null when the metrics are off
+	private final NarniaaMetrics metrics;
+	private final ExecutorService executor;
+
+	//blocks prepared ahead of the writers, each holding one reference for the allocator
+	private final ConcurrentHashMap<Long, VanillaMappedBytes> ready = new ConcurrentHashMap<>();
+	//end of the blocks already asked for, ahead of the writers and of the reader
+	private final AtomicLong scheduled;
+	private final AtomicLong readScheduled = new AtomicLong();
+	private volatile long lastRead = -1;
+	private volatile boolean closed;
+
+	/**
+	 * @param tail: end of the values written so far
+	 * @param ahead: number of blocks prepared ahead of the writers, 0 for none
+	 * @param readAhead: number of blocks read ahead of a sequential reader, 0 for none
+	 */
+	public BlockAllocator(File dataFile, VanillaMappedBlocks dataBlocks, FileChannel dataChannel, int blockSize,
+			long tail, int ahead, int readAhead, NarniaaMetrics metrics) throws IOException {
+		this.dataBlocks = dataBlocks;
+		this.mappedFile = ahead > 0 ? VanillaMappedFile.readWrite(dataFile) : null;
+		this.dataChannel = dataChannel;
+		this.blockSize = blockSize;
+		this.ahead = ahead;
+		this.readAhead = readAhead;
+		this.metrics = metrics;
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "narniaa-blocks");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduled = new AtomicLong(block(tail) + 1);
+		written(tail);
+	}
+
+	private long block(long end) {
+		return end == 0 ? 0 : (end - 1) / blockSize;
+	}
+
+	/**
+	 * told by the writers of the end of the range they took, prepares the next blocks once they move to a new
+	 * one. Costs one read when they don't.
+	 */
+	public void written(long end) {
+		if (ahead == 0) return;
+		long block = block(end);
+		long target = block + 1 + ahead;
+		long from = scheduled.get();
+		if (target <= from || !scheduled.compareAndSet(from, target)) return;
+		submit(() -> prepare(Math.max(from, block + 1), target, block));
+	}
+
+	/**
+	 * told by the readers of the block they read, reads the next blocks ahead when it follows the last one.
+	 */
+	public void read(long block) {
+		if (readAhead == 0) return;
+		long last = lastRead;
+		if (last == block) return;
+		lastRead = block;
+		if (block != last + 1) return;
+		long target = block + 1 + readAhead;
+		long from = readScheduled.get();
+		if (target <= from || !readScheduled.compareAndSet(from, target)) return;
+		submit(() -> readAhead(Math.max(from, block + 1), target));
+	}
+
+	/**
+	 * @return the block with one more reference, to release once done with, null if it wasn't prepared
+	 */
+	public VanillaMappedBytes acquire(long block) {
+		if (ready.isEmpty()) return null;
+		VanillaMappedBytes bytes = ready.computeIfPresent(block, (b, prepared) -> {
+			prepared.reserve();
+			return prepared;
+		});
+		if (bytes != null && metrics != null) metrics.preallocatedAcquired();
+		return bytes;
+	}
+
+	private void submit(Runnable task) {
+		if (closed) return;
+		try {
+			executor.execute(task);
+		} catch (RuntimeException e) {
+			//rejected once closed
+		}
+	}
+
+	private void prepare(long from, long to, long tail) {
+		//the writers are past these, they go back to the blocks of the store
+		for (Long block : ready.keySet()) {
+			if (block < tail - 1) ready.computeIfPresent(block, (b, prepared) -> {
+				prepared.release();
+				return null;
+			});
+		}
+		try {
+			for (long block = from; block < to && !closed; block++) {
+				if (ready.containsKey(block)) continue;
+				VanillaMappedBytes bytes;
+				//mapping may grow the file, never at the same time as the store maps a block
+				synchronized (dataBlocks) {
+					bytes = mappedFile.bytes(block * blockSize, blockSize, block);
+				}
+				for (long page = 0; page < blockSize; page += PAGE) {
+					bytes.compareAndSwapInt(page, 0, 0);
+				}
+				ready.put(block, bytes);
+				if (metrics != null) metrics.preallocated();
+			}
+		} catch (IOException e) {
+			//the writers map the blocks themselves
+			e.printStackTrace();
+		}
+	}
+
+	private void readAhead(long from, long to) {
+		ByteBuffer page = ByteBuffer.allocateDirect(1);
+		try {
+			long size = dataChannel.size();
+			for (long block = from; block < to && block * blockSize < size; block++) {
+				long end = Math.min((block + 1) * blockSize, size);
+				for (long offset = block * blockSize; offset < end; offset += PAGE) {
+					if (closed) return;
+					page.clear();
+					dataChannel.read(page, offset);
+				}
+				if (metrics != null) metrics.readAhead();
+			}
+		} catch (IOException e) {
+			//the reader will see it
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		//not interrupted: an interrupted read would close the channel of the store
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Long block : ready.keySet()) {
+			ready.computeIfPresent(block, (b, prepared) -> {
+				prepared.release();
+				return null;
+			});
+		}
+		try {
+			if (mappedFile != null) mappedFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.panterose.narniaa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live, dead and reclaimed bytes of each block of the data file.
+ *
+ * A value counts as live from its put until it is replaced, its bytes then become dead until the
+ * compactor reclaims the block. Counters are kept in chunks of 1024 blocks created on demand, so they
+ * are never copied while writers update them. They are saved with the index, see {@link #save(long)}, and only
+ * recomputed from the entries after a crash.
+ */
+public class BlockStats {
+
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	private static final int FIELDS = 3;
+	private static final int LIVE = 0;
+	private static final int DEAD = 1;
+	private static final int RECLAIMED = 2;
+
+	private final long blockSize;
+	private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(1 << 16);
+	private final LongAdder liveBytes = new LongAdder();
+	private final LongAdder deadBytes = new LongAdder();
+	private final LongAdder reclaimedBytes = new LongAdder();
+
+	public BlockStats(long blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * a value was written at offset
+	 */
+	public void live(long offset, long size) {
+		add(offset, size, LIVE, 1);
+		liveBytes.add(size);
+	}
+
+	/**
+	 * the value at offset was replaced or removed
+	 */
+	public void dead(long offset, long size) {
+		add(offset, size, LIVE, -1);
+		add(offset, size, DEAD, 1);
+		liveBytes.add(-size);
+		deadBytes.add(size);
+	}
+
+	/**
+	 * the dead bytes of the block were handed back to the writers
+	 */
+	public void reclaim(long block) {
+		AtomicLongArray chunk = chunk(block);
+		int index = index(block);
+		long dead = chunk.getAndSet(index + DEAD, 0);
+		chunk.addAndGet(index + RECLAIMED, dead);
+		deadBytes.add(-dead);
+		reclaimedBytes.add(dead);
+	}
+
+	public long live(long block) {
+		return get(block, LIVE);
+	}
+
+	public long dead(long block) {
+		return get(block, DEAD);
+	}
+
+	public long reclaimed(long block) {
+		return get(block, RECLAIMED);
+	}
+
+	public long liveBytes() {
+		return liveBytes.sum();
+	}
+
+	public long deadBytes() {
+		return deadBytes.sum();
+	}
+
+	public long reclaimedBytes() {
+		return reclaimedBytes.sum();
+	}
+
+	/**
+	 * @return the counters of the blocks up to valueMaxOffset: block size, number of blocks, then the live,
+	 * dead and reclaimed bytes of each block
+	 */
+	public long[] save(long valueMaxOffset) {
+		int blocks = (int) ((valueMaxOffset + blockSize - 1) / blockSize);
+		long[] saved = new long[2 + blocks * FIELDS];
+		saved[0] = blockSize;
+		saved[1] = blocks;
+		for (int block = 0; block < blocks; block++) {
+			for (int field = 0; field < FIELDS; field++) {
+				saved[2 + block * FIELDS + field] = get(block, field);
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * restore the counters returned by {@link #save(long)}.
+	 * @return false if they were saved with another block size or another end of the data, nothing is changed then
+	 */
+	public boolean load(long[] saved, long valueMaxOffset) {
+		int blocks = (int) ((valueMaxOffset + blockSize - 1) / blockSize);
+		if (saved == null || saved.length != 2 + blocks * FIELDS || saved[0] != blockSize || saved[1] != blocks) return false;
+		clear();
+		for (int block = 0; block < blocks; block++) {
+			AtomicLongArray chunk = chunk(block);
+			for (int field = 0; field < FIELDS; field++) {
+				chunk.set(index(block) + field, saved[2 + block * FIELDS + field]);
+			}
+			liveBytes.add(saved[2 + block * FIELDS + LIVE]);
+			deadBytes.add(saved[2 + block * FIELDS + DEAD]);
+			reclaimedBytes.add(saved[2 + block * FIELDS + RECLAIMED]);
+		}
+		return true;
+	}
+
+	/**
+	 * recompute the counters from the index: what is not referenced below the end of the data is dead. The
+	 * blocks emptied before a crash are then counted as dead again, compacting them moves nothing.
+	 */
+	public void rebuild(BeniIndex index, long valueMaxOffset) {
+		clear();
+		index.forEach((hash, keyOffset, valueOffset, valueSize) -> live(valueOffset, valueSize));
+		for (long block = 0; block * blockSize < valueMaxOffset; block++) {
+			long allocated = Math.min(blockSize, valueMaxOffset - block * blockSize);
+			long dead = allocated - live(block);
+			if (dead > 0) {
+				chunk(block).addAndGet(index(block) + DEAD, dead);
+				deadBytes.add(dead);
+			}
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < chunks.length(); i++) {
+			chunks.set(i, null);
+		}
+		liveBytes.reset();
+		deadBytes.reset();
+		reclaimedBytes.reset();
+	}
+
+	private void add(long offset, long size, int field, int sign) {
+		long end = offset + size;
+		while (offset < end) {
+			long block = offset / blockSize;
+			long length = Math.min(end, (block + 1) * blockSize) - offset;
+			chunk(block).addAndGet(index(block) + field, sign * length);
+			offset += length;
+		}
+	}
+
+	private long get(long block, int field) {
+		AtomicLongArray chunk = chunks.get((int) (block >>> CHUNK_BITS));
+		return chunk == null ? 0 : chunk.get(index(block) + field);
+	}
+
+	private AtomicLongArray chunk(long block) {
+		int i = (int) (block >>> CHUNK_BITS);
+		AtomicLongArray chunk = chunks.get(i);
+		if (chunk == null) {
+			chunks.compareAndSet(i, null, new AtomicLongArray((CHUNK_MASK + 1) * FIELDS));
+			chunk = chunks.get(i);
+		}
+		return chunk;
+	}
+
+	private static int index(long block) {
+		return (int) (block & CHUNK_MASK) * FIELDS;
+	}
+}
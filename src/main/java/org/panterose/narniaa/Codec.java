@@ -0,0 +1,23 @@
+package org.panterose.narniaa;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the keys or the values of a {@link NarniaaMap} to bytes and back, see {@link Codecs} for the
+ * simple types and {@link KryoCodec} for objects.
+ */
+public interface Codec<T> {
+
+	/**
+	 * @return the encoded value, between the position and the limit of the buffer. The codec may reuse the
+	 * buffer on the next call from the same thread, it is only read until then.
+	 */
+	ByteBuffer encode(T value);
+
+	/**
+	 * @param from: the encoded value, between its position and its limit. It may be a view of the mapped data
+	 * blocks, only valid during the call
+	 * @param reuse: object to decode into if the codec supports it, null to get a new one
+	 */
+	T decode(ByteBuffer from, T reuse);
+}
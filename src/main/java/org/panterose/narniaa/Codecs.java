@@ -0,0 +1,73 @@
+package org.panterose.narniaa;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codecs of the simple types, numbers are big endian so their keys sort like their values when positive.
+ */
+public final class Codecs {
+
+	private Codecs() {
+	}
+
+	public static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+		@Override
+		public ByteBuffer encode(byte[] value) {
+			return ByteBuffer.wrap(value);
+		}
+
+		@Override
+		public byte[] decode(ByteBuffer from, byte[] reuse) {
+			byte[] bytes = reuse != null && reuse.length == from.remaining() ? reuse : new byte[from.remaining()];
+			from.get(bytes);
+			return bytes;
+		}
+	};
+
+	public static final Codec<String> UTF8 = new Codec<String>() {
+		@Override
+		public ByteBuffer encode(String value) {
+			return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public String decode(ByteBuffer from, String reuse) {
+			return StandardCharsets.UTF_8.decode(from).toString();
+		}
+	};
+
+	public static final Codec<Integer> INT = new Codec<Integer>() {
+		private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4));
+
+		@Override
+		public ByteBuffer encode(Integer value) {
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			buffer.putInt(0, value);
+			return buffer;
+		}
+
+		@Override
+		public Integer decode(ByteBuffer from, Integer reuse) {
+			return from.getInt(from.position());
+		}
+	};
+
+	public static final Codec<Long> LONG = new Codec<Long>() {
+		private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8));
+
+		@Override
+		public ByteBuffer encode(Long value) {
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			buffer.putLong(0, value);
+			return buffer;
+		}
+
+		@Override
+		public Long decode(ByteBuffer from, Long reuse) {
+			return from.getLong(from.position());
+		}
+	};
+}
@@ -0,0 +1,20 @@
+package org.panterose.narniaa;
+
+/**
+ * When the writes of a {@link NarniaaDB} are forced to disk.
+ */
+public enum Durability {
+	/**
+	 * never force, the OS writes the pages back when it wants: a crash of the machine can lose any write.
+	 */
+	NONE,
+	/**
+	 * force the data then the index every sync interval in a background thread: a crash of the machine
+	 * loses at most the writes of the last interval.
+	 */
+	PERIODIC,
+	/**
+	 * force the values then their records before each put or batch returns.
+	 */
+	SYNC
+}
@@ -0,0 +1,64 @@
+package org.panterose.narniaa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Grace periods for the blocks emptied by the {@link NarniaaCompactor}, and for the segments dropped by a
+ * {@link RollingNarniaaDB}.
+ *
+ * Readers, writers, views and snapshots enter the current epoch before they look an entry up and leave it once
+ * done with its value. A block emptied during epoch e can be reused once the epoch is e + 2: moving to the next
+ * epoch waits for the readers of the previous one to leave, so nobody still holds an offset in the block.
+ *
+ * The readers are counted per epoch parity in padded stripes picked by thread, entering is an increment of
+ * a counter shared with few other threads.
+ */
+public class Epoch {
+
+	private static final int STRIPES = 64;
+	//longs per stripe, one cache line apart
+	private static final int PAD = 16;
+
+	private final AtomicLongArray active = new AtomicLongArray(2 * STRIPES * PAD);
+	private volatile long epoch;
+
+	/**
+	 * @return the counter entered, to give to {@link #exit(int)}
+	 */
+	public int enter() {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		while (true) {
+			long e = epoch;
+			int slot = ((int) (e & 1) * STRIPES + stripe) * PAD;
+			active.incrementAndGet(slot);
+			//a reader seeing the epoch it counted itself in is seen by advance()
+			if (epoch == e) return slot;
+			active.decrementAndGet(slot);
+		}
+	}
+
+	/**
+	 * @param slot: the counter returned by {@link #enter()}, may be left from another thread
+	 */
+	public void exit(int slot) {
+		active.decrementAndGet(slot);
+	}
+
+	public long current() {
+		return epoch;
+	}
+
+	/**
+	 * move to the next epoch if no reader of the previous one is left.
+	 * @return the current epoch
+	 */
+	public synchronized long advance() {
+		long e = epoch;
+		int parity = (int) ((e + 1) & 1);
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			if (active.get((parity * STRIPES + stripe) * PAD) != 0) return e;
+		}
+		epoch = e + 1;
+		return e + 1;
+	}
+}
@@ -0,0 +1,180 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.openhft.lang.io.VanillaMappedBytes;
+import net.openhft.lang.io.VanillaMappedFile;
+
+/**
+ * Read only view over the <code>.vidx</code> log, used to compare lookup keys with the keys stored in the
+ * log instead of keeping them on heap.
+ *
+ * The file is mapped in chunks of 1 GB, the last chunk is remapped when a reader goes past its end.
+ * Replaced mappings are never released explicitly, they are left to the GC so a concurrent reader can't
+ * touch an unmapped region.
+ */
+public class IndexView implements BeniRecord.Log, Closeable {
+
+	private static final int KEY_SIZE_POSITION = BeniRecord.KEY_SIZE_POSITION;
+	private static final int KEY_POSITION = BeniRecord.KEY_POSITION;
+
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final VanillaMappedFile file;
+	private volatile VanillaMappedBytes[] chunks = new VanillaMappedBytes[0];
+	private volatile long mapped = 0;
+	private volatile boolean retired;
+
+	public IndexView(File idxFile) throws IOException {
+		this.file = VanillaMappedFile.readOnly(idxFile);
+	}
+
+	/**
+	 * @param keyOffset: offset of the record in the log
+	 * @param key: key to compare
+	 * @return true if the record at keyOffset holds exactly this key
+	 */
+	public boolean keyEquals(long keyOffset, byte[] key) {
+		if (!ensure(keyOffset + KEY_POSITION + key.length)) return false;
+		if (readInt(keyOffset + KEY_SIZE_POSITION) != key.length) return false;
+		long offset = keyOffset + KEY_POSITION;
+		for (int i = 0; i < key.length; i++) {
+			if (readByte(offset + i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the records at offset and other hold the same key
+	 */
+	public boolean keyEquals(long offset, long other) {
+		int keySize = readInt(offset + KEY_SIZE_POSITION);
+		if (readInt(other + KEY_SIZE_POSITION) != keySize) return false;
+		for (int i = 0; i < keySize; i++) {
+			if (readByte(offset + KEY_POSITION + i) != readByte(other + KEY_POSITION + i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a copy of the key of the record at keyOffset
+	 */
+	public byte[] key(long keyOffset) {
+		if (!ensure(keyOffset + KEY_POSITION)) throw new IllegalArgumentException("No record at " + keyOffset);
+		int keySize = readInt(keyOffset + KEY_SIZE_POSITION);
+		if (!ensure(keyOffset + KEY_POSITION + keySize)) throw new IllegalArgumentException("No record at " + keyOffset);
+		byte[] key = new byte[keySize];
+		for (int i = 0; i < keySize; i++) {
+			key[i] = readByte(keyOffset + KEY_POSITION + i);
+		}
+		return key;
+	}
+
+	public long readLong(long offset) {
+		VanillaMappedBytes chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		long position = offset & CHUNK_MASK;
+		if (position + 8 <= chunk.capacity()) {
+			return chunk.readLong(position);
+		}
+		long result = 0;
+		for (int i = 7; i >= 0; i--) {
+			result = (result << 8) | (readByte(offset + i) & 0xFF);
+		}
+		return result;
+	}
+
+	@Override
+	public int readInt(long offset) {
+		VanillaMappedBytes chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		long position = offset & CHUNK_MASK;
+		if (position + 4 <= chunk.capacity()) {
+			return chunk.readInt(position);
+		}
+		int result = 0;
+		for (int i = 3; i >= 0; i--) {
+			result = (result << 8) | (readByte(offset + i) & 0xFF);
+		}
+		return result;
+	}
+
+	@Override
+	public int readVolatileInt(long offset) {
+		VanillaMappedBytes chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		long position = offset & CHUNK_MASK;
+		if (position + 4 <= chunk.capacity()) {
+			return chunk.readVolatileInt(position);
+		}
+		return readInt(offset);
+	}
+
+	@Override
+	public void readFully(long offset, byte[] into, int from, int length) {
+		VanillaMappedBytes chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+		long position = offset & CHUNK_MASK;
+		if (position + length <= chunk.capacity()) {
+			chunk.readFully(position, into, from, length);
+			return;
+		}
+		for (int i = 0; i < length; i++) {
+			into[from + i] = readByte(offset + i);
+		}
+	}
+
+	public byte readByte(long offset) {
+		return chunks[(int) (offset >>> CHUNK_BITS)].readByte(offset & CHUNK_MASK);
+	}
+
+	/**
+	 * make sure [0, end) is mapped, remapping the tail of the file if it grew.
+	 * @return false if the file is shorter than end
+	 */
+	public boolean ensure(long end) {
+		if (end <= mapped) return true;
+		synchronized (this) {
+			if (end <= mapped) return true;
+			if (retired) return false;
+			try {
+				long size = file.size();
+				if (end > size) return false;
+				VanillaMappedBytes[] current = chunks;
+				int count = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+				VanillaMappedBytes[] remapped = Arrays.copyOf(current, count);
+				//the last chunk we had may be partial, map it again
+				int from = Math.max(0, current.length - 1);
+				for (int i = from; i < count; i++) {
+					long address = (long) i << CHUNK_BITS;
+					remapped[i] = file.bytes(address, Math.min(CHUNK_SIZE, size - address));
+				}
+				chunks = remapped;
+				mapped = size;
+				return true;
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't map index file " + file.path(), e);
+			}
+		}
+	}
+
+	public long size() {
+		return mapped;
+	}
+
+	/**
+	 * close the file once the log was replaced, the mappings are kept for the readers still on this view.
+	 */
+	public synchronized void retire() throws IOException {
+		retired = true;
+		file.close();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		chunks = new VanillaMappedBytes[0];
+		mapped = 0;
+		file.close();
+	}
+}
@@ -0,0 +1,94 @@
+package org.panterose.narniaa;
+
+import java.nio.ByteBuffer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.pool.KryoFactory;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Kryo codec of one type. Each thread has its own Kryo, made by the factory, with its own direct output
+ * buffer kept between calls and an input reading straight from the buffer given, so a round trip allocates
+ * only the decoded object, or nothing more than its fields when decoding into a reused object.
+ *
+ * The type is registered with a field serializer able to decode into an existing object, it replaces any
+ * serializer the factory registered for it.
+ */
+public class KryoCodec<T> implements Codec<T> {
+
+	private static final int INITIAL_BUFFER = 4096;
+
+	private final Class<T> type;
+	private final ThreadLocal<Pooled> pool;
+
+	public KryoCodec(Class<T> type) {
+		this(type, Kryo::new);
+	}
+
+	public KryoCodec(Class<T> type, KryoFactory factory) {
+		this.type = type;
+		this.pool = ThreadLocal.withInitial(() -> new Pooled(factory.create()));
+	}
+
+	@Override
+	public ByteBuffer encode(T value) {
+		Pooled pooled = pool.get();
+		ByteBufferOutput output = pooled.output;
+		output.clear();
+		pooled.kryo.writeObject(output, value);
+		ByteBuffer buffer = output.getByteBuffer();
+		buffer.limit(output.position());
+		buffer.position(0);
+		return buffer;
+	}
+
+	@Override
+	public T decode(ByteBuffer from, T reuse) {
+		Pooled pooled = pool.get();
+		pooled.input.setBuffer(from);
+		pooled.serializer.target = reuse;
+		try {
+			return pooled.kryo.readObject(pooled.input, type);
+		} finally {
+			pooled.serializer.target = null;
+			pooled.input.setBuffer(EMPTY);
+		}
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private class Pooled {
+		final Kryo kryo;
+		final ReusingSerializer serializer;
+		final ByteBufferOutput output = new ByteBufferOutput(INITIAL_BUFFER, -1);
+		final ByteBufferInput input = new ByteBufferInput();
+
+		Pooled(Kryo kryo) {
+			this.kryo = kryo;
+			this.serializer = new ReusingSerializer(kryo);
+			kryo.register(type, serializer);
+		}
+	}
+
+	/**
+	 * creates the top level object as the target if there is one.
+	 */
+	private class ReusingSerializer extends FieldSerializer<T> {
+		T target;
+
+		ReusingSerializer(Kryo kryo) {
+			super(kryo, type);
+		}
+
+		@Override
+		protected T create(Kryo kryo, Input input, Class<T> type) {
+			T reuse = target;
+			if (reuse == null) return super.create(kryo, input, type);
+			target = null;
+			return reuse;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package org.panterose.narniaa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in ns, with a fixed relative precision like HdrHistogram: each power of 2
+ * is split in 16 buckets, a percentile is off by less than 1/16 of its value.
+ *
+ * Recording is a few atomic adds, no allocation and no lock.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + mantissa;
+	}
+
+	/**
+	 * @return the highest value of the bucket
+	 */
+	static long value(int bucket) {
+		if (bucket < SUB) return bucket;
+		int shift = bucket / SUB - 1;
+		long lowest = (long) (SUB + bucket % SUB) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public double mean() {
+		long count = count();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+
+	/**
+	 * @param percentile: between 0 and 100
+	 * @return the duration under which this percentage of the recorded durations are, 0 if none was recorded
+	 */
+	public long percentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			recorded += snapshot[i];
+		}
+		if (recorded == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) return value(i);
+		}
+		return value(BUCKETS - 1);
+	}
+
+	public long max() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) return value(i);
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count=" + count() + ", mean=" + (long) mean() + ", p50=" + percentile(50) + ", p99="
+				+ percentile(99) + ", p999=" + percentile(99.9) + ", max=" + max() + "]";
+	}
+}
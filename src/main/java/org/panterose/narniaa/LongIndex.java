@@ -0,0 +1,247 @@
+package org.panterose.narniaa;
+
+import java.io.IOException;
+import java.util.concurrent.locks.StampedLock;
+
+import org.panterose.narniaa.BeniIndex.RecordWriter;
+
+/**
+ * In-heap index of a {@link NarniaaLongDB}: long key to (valueOffset, valueSize).
+ *
+ * As the {@link BeniIndex}, open addressing tables of primitive longs split in segments, with optimistic
+ * lookups that don't allocate and writers appending their record under the segment lock. The key is held in
+ * the slot itself so nothing is compared against the log. A slot is 3 longs: the key, the value offset and
+ * the value size + 1, 0 for an empty slot.
+ */
+public class LongIndex {
+
+	static final int SLOT = 3;
+	static final int KEY = 0;
+	static final int VALUE_OFFSET = 1;
+	static final int VALUE_SIZE = 2;
+
+	private static final int SEGMENT_BITS = 6;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+	public LongIndex() {
+		clear();
+	}
+
+	/**
+	 * murmur3 finaliser: keys that are small or share their low bits still spread over segments and slots.
+	 */
+	public static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private Segment segment(long hash) {
+		return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+	}
+
+	/**
+	 * @param into: filled with valueOffset and valueSize when the key is found
+	 * @return true if the key is in the index
+	 */
+	public boolean lookup(long key, long[] into) {
+		long hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.tryOptimisticRead();
+		if (stamp != 0) {
+			boolean found = segment.lookup(key, hash, into);
+			if (segment.validate(stamp)) return found;
+		}
+		stamp = segment.readLock();
+		try {
+			return segment.lookup(key, hash, into);
+		} finally {
+			segment.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * insert or replace the entry of this key, on replay.
+	 */
+	public boolean put(long key, long valueOffset, long valueSize) {
+		long hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.put(key, hash, valueOffset, valueSize, null);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * insert or replace the entry of this key, its record is appended by the writer under the segment lock.
+	 * @param previous: if not null, filled with valueOffset and valueSize of the replaced entry
+	 * @return true if the key was already in the index
+	 */
+	public boolean put(long key, long valueOffset, long valueSize, RecordWriter record, long[] previous) throws IOException {
+		long hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			record.write();
+			return segment.put(key, hash, valueOffset, valueSize, previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * remove the entry of this key, on replay.
+	 */
+	public boolean remove(long key) {
+		long hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.remove(key, hash, null);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * remove the entry of this key, its tombstone is appended by the writer under the segment lock only if the
+	 * key is in the index.
+	 * @param previous: if not null, filled with valueOffset and valueSize of the removed entry
+	 * @return true if the key was in the index
+	 */
+	public boolean remove(long key, RecordWriter record, long[] previous) throws IOException {
+		long hash = hash(key);
+		Segment segment = segment(hash);
+		long stamp = segment.writeLock();
+		try {
+			long[] table = segment.table;
+			int slot = segment.find(table, key, hash);
+			if (slot < 0 || table[slot + VALUE_SIZE] == 0) return false;
+			record.write();
+			return segment.remove(key, hash, previous);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			long stamp = segment.readLock();
+			try {
+				size += segment.size;
+			} finally {
+				segment.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static final class Segment extends StampedLock {
+		long[] table = new long[INITIAL_CAPACITY * SLOT];
+		int size;
+
+		boolean lookup(long key, long hash, long[] into) {
+			long[] table = this.table;
+			int slot = find(table, key, hash);
+			if (slot < 0 || table[slot + VALUE_SIZE] == 0) return false;
+			into[0] = table[slot + VALUE_OFFSET];
+			into[1] = table[slot + VALUE_SIZE] - 1;
+			return true;
+		}
+
+		boolean put(long key, long hash, long valueOffset, long valueSize, long[] previous) {
+			int slot = find(table, key, hash);
+			boolean existed = table[slot + VALUE_SIZE] != 0;
+			if (existed && previous != null) {
+				previous[0] = table[slot + VALUE_OFFSET];
+				previous[1] = table[slot + VALUE_SIZE] - 1;
+			}
+			if (!existed) {
+				if ((size + 1) * 4L > (table.length / SLOT) * 3L) {
+					resize();
+					slot = find(table, key, hash);
+				}
+				size++;
+			}
+			table[slot + KEY] = key;
+			table[slot + VALUE_OFFSET] = valueOffset;
+			table[slot + VALUE_SIZE] = valueSize + 1;
+			return existed;
+		}
+
+		/**
+		 * backward shift deletion, see BeniIndex.
+		 */
+		boolean remove(long key, long hash, long[] previous) {
+			long[] table = this.table;
+			int slot = find(table, key, hash);
+			if (slot < 0 || table[slot + VALUE_SIZE] == 0) return false;
+			if (previous != null) {
+				previous[0] = table[slot + VALUE_OFFSET];
+				previous[1] = table[slot + VALUE_SIZE] - 1;
+			}
+			int mask = table.length / SLOT - 1;
+			int hole = slot / SLOT;
+			int index = hole;
+			while (true) {
+				index = (index + 1) & mask;
+				int next = index * SLOT;
+				if (table[next + VALUE_SIZE] == 0) break;
+				int home = (int) hash(table[next + KEY]) & mask;
+				if (((index - home) & mask) >= ((index - hole) & mask)) {
+					System.arraycopy(table, next, table, hole * SLOT, SLOT);
+					hole = index;
+				}
+			}
+			table[hole * SLOT + VALUE_SIZE] = 0;
+			size--;
+			return true;
+		}
+
+		/**
+		 * linear probing, bounded by the capacity as optimistic readers may look at a table being modified.
+		 * @return position of the slot holding the key or of the first empty slot, -1 if none was found
+		 */
+		int find(long[] table, long key, long hash) {
+			int capacity = table.length / SLOT;
+			int mask = capacity - 1;
+			int index = (int) hash & mask;
+			for (int probe = 0; probe < capacity; probe++) {
+				int slot = index * SLOT;
+				if (table[slot + VALUE_SIZE] == 0 || table[slot + KEY] == key) return slot;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void resize() {
+			long[] old = table;
+			long[] resized = new long[old.length * 2];
+			int mask = resized.length / SLOT - 1;
+			for (int slot = 0; slot < old.length; slot += SLOT) {
+				if (old[slot + VALUE_SIZE] == 0) continue;
+				int index = (int) hash(old[slot + KEY]) & mask;
+				while (resized[index * SLOT + VALUE_SIZE] != 0) {
+					index = (index + 1) & mask;
+				}
+				System.arraycopy(old, slot, resized, index * SLOT, SLOT);
+			}
+			table = resized;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background compaction of the data file.
+ *
+ * Blocks fully below the tail whose share of dead bytes is over the threshold are compacted: their live
+ * values are copied to the tail and their entries moved there, as long as no writer updated them in the
+ * meantime. Once a block has no live value left, and once the readers that may have looked up an old offset
+ * in it are gone, see {@link Epoch}, it is handed back to the writers: they fill the free blocks again before
+ * growing the data file, so its size follows the live data instead of every version ever written.
+ *
+ * Readers and writers keep running during compaction. Blocks emptied while a zero-copy view or a
+ * {@link NarniaaSnapshot} is open are kept until it is closed.
+ */
+public class NarniaaCompactor implements Closeable {
+
+	private static final int MAX_BLOCKS_PER_RUN = 16;
+
+	private final NarniaaDB db;
+	private final double threshold;
+
+	//blocks emptied by a run, with the epoch they were emptied in
+	private final Map<Long, Long> pending = new ConcurrentHashMap<>();
+	private final AtomicLong relocatedBytes = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+
+	public NarniaaCompactor(NarniaaDB db, double threshold) {
+		this.db = db;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * run the compaction every interval ms, in a daemon thread.
+	 */
+	public synchronized void start(long interval) {
+		if (scheduler != null) return;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "narniaa-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				runOnce();
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * reclaim the blocks emptied by previous runs then compact the most dead blocks.
+	 * @return number of blocks compacted
+	 */
+	public synchronized int runOnce() throws IOException {
+		reclaim();
+
+		BlockStats stats = db.blockStats;
+		long tailBlock = db.valueMaxOffset.get() / db.blockSize;
+		BitSet candidates = new BitSet();
+		int count = 0;
+		for (long block = 0; block < tailBlock && count < MAX_BLOCKS_PER_RUN; block++) {
+			if (pending.containsKey(block) || db.refilling(block)) continue;
+			long live = stats.live(block);
+			long dead = stats.dead(block);
+			if (dead > 0 && dead >= threshold * (live + dead)) {
+				candidates.set((int) block);
+				count++;
+			}
+		}
+		if (count == 0) return 0;
+
+		//collect the entries with bytes in these blocks
+		long[][] moves = { new long[64] };
+		int[] size = { 0 };
+		db.entries.forEach((hash, keyOffset, valueOffset, valueSize) -> {
+			long first = valueOffset / db.blockSize;
+			long last = valueSize == 0 ? first : (valueOffset + valueSize - 1) / db.blockSize;
+			int next = candidates.nextSetBit((int) first);
+			if (next < 0 || next > last) return;
+			if (size[0] + 4 > moves[0].length) {
+				moves[0] = Arrays.copyOf(moves[0], moves[0].length * 2);
+			}
+			long[] m = moves[0];
+			m[size[0]++] = hash;
+			m[size[0]++] = keyOffset;
+			m[size[0]++] = valueOffset;
+			m[size[0]++] = valueSize;
+		});
+		long[] m = moves[0];
+		for (int i = 0; i < size[0]; i += 4) {
+			if (db.relocate((int) m[i], m[i + 1], m[i + 2], m[i + 3])) {
+				relocatedBytes.addAndGet(m[i + 3]);
+			}
+		}
+
+		//the entries no longer refer to these blocks, only the readers of this epoch or earlier may
+		long emptied = db.epoch.current();
+		for (int block = candidates.nextSetBit(0); block >= 0; block = candidates.nextSetBit(block + 1)) {
+			pending.put((long) block, emptied);
+		}
+		reclaim();
+		return count;
+	}
+
+	private void reclaim() throws IOException {
+		if (pending.isEmpty()) return;
+		//two grace periods: the readers of the epoch a block was emptied in are gone
+		db.epoch.advance();
+		long epoch = db.epoch.advance();
+		boolean synced = false;
+		Iterator<Map.Entry<Long, Long>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Long> e = it.next();
+			if (epoch < e.getValue() + 2) continue;
+			long block = e.getKey();
+			it.remove();
+			//a late writer may have published into it, it will be compacted again
+			if (db.blockStats.live(block) > 0) continue;
+			//the moved values and their records must be on disk before the old copies are overwritten
+			if (!synced) {
+				db.sync();
+				synced = true;
+			}
+			db.blockStats.reclaim(block);
+			db.free(block);
+		}
+	}
+
+	public long relocatedBytes() {
+		return relocatedBytes.get();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			try {
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			scheduler = null;
+		}
+	}
+}
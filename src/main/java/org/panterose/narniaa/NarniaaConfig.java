@@ -0,0 +1,267 @@
+package org.panterose.narniaa;
+
+/**
+ * Options of a {@link NarniaaDB}, setters can be chained:
+ * <code>new NarniaaConfig().blockSize(1 << 26).persistentIndex(false)</code>
+ */
+public class NarniaaConfig {
+
+	private int blockSize = 1 << 26;
+	private boolean deleteOnExit = false;
+	private boolean persistentIndex = true;
+	private long compactionInterval = 0;
+	private double compactionThreshold = 0.5;
+	private Durability durability = Durability.NONE;
+	private long syncInterval = 1000;
+	private boolean sortedIndex = false;
+	private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+	private RecoveryListener recoveryListener;
+	private boolean metrics = false;
+	private int preallocateBlocks = 0;
+	private int readAheadBlocks = 0;
+	private long segmentBytes = 0;
+	private long segmentInterval = 0;
+	private long retentionBytes = 0;
+	private long retentionTime = 0;
+	private boolean inPlaceUpdates = false;
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * size of the mapped blocks of the data file.
+	 */
+	public NarniaaConfig blockSize(int blockSize) {
+		this.blockSize = blockSize;
+		return this;
+	}
+
+	public boolean isDeleteOnExit() {
+		return deleteOnExit;
+	}
+
+	/**
+	 * delete the files of the store when the JVM exits, for tests.
+	 */
+	public NarniaaConfig deleteOnExit(boolean deleteOnExit) {
+		this.deleteOnExit = deleteOnExit;
+		return this;
+	}
+
+	public boolean isPersistentIndex() {
+		return persistentIndex;
+	}
+
+	/**
+	 * save the in-memory index in a <code>.vhash</code> file on close and map it back on open, instead of
+	 * replaying the whole <code>.vidx</code> log.
+	 */
+	public NarniaaConfig persistentIndex(boolean persistentIndex) {
+		this.persistentIndex = persistentIndex;
+		return this;
+	}
+
+	public long getCompactionInterval() {
+		return compactionInterval;
+	}
+
+	/**
+	 * run the compactor every interval ms in the background, 0 (the default) to only compact on
+	 * {@link NarniaaDB#compact()}.
+	 */
+	public NarniaaConfig compactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+		return this;
+	}
+
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * share of dead bytes from which a block is compacted.
+	 */
+	public NarniaaConfig compactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * when writes are forced to disk, see {@link Durability}.
+	 */
+	public NarniaaConfig durability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * ms between two forces of the files with {@link Durability#PERIODIC}.
+	 */
+	public NarniaaConfig syncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+		return this;
+	}
+
+	public boolean isSortedIndex() {
+		return sortedIndex;
+	}
+
+	/**
+	 * keep the keys sorted as well, for {@link NarniaaDB#scan(byte[], byte[])} and
+	 * {@link NarniaaDB#prefixScan(byte[])}. The keys are then also held on heap.
+	 */
+	public NarniaaConfig sortedIndex(boolean sortedIndex) {
+		this.sortedIndex = sortedIndex;
+		return this;
+	}
+
+	public int getRecoveryThreads() {
+		return recoveryThreads;
+	}
+
+	/**
+	 * number of threads replaying the log on open, when the hash file can't be used.
+	 */
+	public NarniaaConfig recoveryThreads(int recoveryThreads) {
+		this.recoveryThreads = recoveryThreads;
+		return this;
+	}
+
+	public RecoveryListener getRecoveryListener() {
+		return recoveryListener;
+	}
+
+	/**
+	 * told of the progress of the replay of the log, none by default.
+	 */
+	public NarniaaConfig recoveryListener(RecoveryListener recoveryListener) {
+		this.recoveryListener = recoveryListener;
+		return this;
+	}
+
+	public boolean isMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * keep latencies and counters, see {@link NarniaaMetrics}. Off by default.
+	 */
+	public NarniaaConfig metrics(boolean metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public int getPreallocateBlocks() {
+		return preallocateBlocks;
+	}
+
+	/**
+	 * number of data blocks mapped and touched by a background thread ahead of the blocks being written, so
+	 * the writers don't wait for the file to grow and its pages to be allocated. 0, the default, turns it off.
+	 */
+	public NarniaaConfig preallocateBlocks(int preallocateBlocks) {
+		this.preallocateBlocks = preallocateBlocks;
+		return this;
+	}
+
+	public int getReadAheadBlocks() {
+		return readAheadBlocks;
+	}
+
+	/**
+	 * number of data blocks read ahead by a background thread when <code>get</code> moves to the next block,
+	 * for readers sweeping the data file in order. 0, the default, turns it off.
+	 */
+	public NarniaaConfig readAheadBlocks(int readAheadBlocks) {
+		this.readAheadBlocks = readAheadBlocks;
+		return this;
+	}
+
+	public long getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	/**
+	 * a {@link RollingNarniaaDB} starts a new segment once the data file of the current one holds this many
+	 * bytes. 0, the default, never rolls on size.
+	 */
+	public NarniaaConfig segmentBytes(long segmentBytes) {
+		this.segmentBytes = segmentBytes;
+		return this;
+	}
+
+	public long getSegmentInterval() {
+		return segmentInterval;
+	}
+
+	/**
+	 * a {@link RollingNarniaaDB} starts a new segment once the current one is this old, in ms. 0, the default,
+	 * never rolls on time.
+	 */
+	public NarniaaConfig segmentInterval(long segmentInterval) {
+		this.segmentInterval = segmentInterval;
+		return this;
+	}
+
+	public long getRetentionBytes() {
+		return retentionBytes;
+	}
+
+	/**
+	 * a {@link RollingNarniaaDB} drops its oldest segments while all of them hold more than this many bytes.
+	 * 0, the default, keeps them.
+	 */
+	public NarniaaConfig retentionBytes(long retentionBytes) {
+		this.retentionBytes = retentionBytes;
+		return this;
+	}
+
+	public long getRetentionTime() {
+		return retentionTime;
+	}
+
+	/**
+	 * a {@link RollingNarniaaDB} drops the segments whose last write is older than this, in ms. 0, the
+	 * default, keeps them.
+	 */
+	public NarniaaConfig retentionTime(long retentionTime) {
+		this.retentionTime = retentionTime;
+		return this;
+	}
+
+	public boolean isInPlaceUpdates() {
+		return inPlaceUpdates;
+	}
+
+	/**
+	 * <code>put</code> rewrites a value of the same size where it is instead of appending it, while no snapshot
+	 * is open. The readers copying it try again if it changed meanwhile, but views and streams of the value,
+	 * and tailers, may see it partly rewritten, as may a replay after a crash during the rewrite. Off by
+	 * default.
+	 */
+	public NarniaaConfig inPlaceUpdates(boolean inPlaceUpdates) {
+		this.inPlaceUpdates = inPlaceUpdates;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "NarniaaConfig [blockSize=" + blockSize + ", deleteOnExit=" + deleteOnExit + ", persistentIndex="
+				+ persistentIndex + ", compactionInterval=" + compactionInterval + ", compactionThreshold="
+				+ compactionThreshold + ", durability=" + durability
+				+ ", syncInterval=" + syncInterval + ", sortedIndex=" + sortedIndex
+				+ ", recoveryThreads=" + recoveryThreads + ", metrics=" + metrics
+				+ ", preallocateBlocks=" + preallocateBlocks + ", readAheadBlocks=" + readAheadBlocks
+				+ ", segmentBytes=" + segmentBytes + ", segmentInterval=" + segmentInterval + ", retentionBytes=" + retentionBytes
+				+ ", retentionTime=" + retentionTime + ", inPlaceUpdates=" + inPlaceUpdates + "]";
+	}
+}
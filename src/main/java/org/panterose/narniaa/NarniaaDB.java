@@ -1,15 +1,42 @@
 package org.panterose.narniaa;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 
+import net.openhft.lang.io.Bytes;
 import net.openhft.lang.io.VanillaMappedBlocks;
 import net.openhft.lang.io.VanillaMappedBytes;
 import net.openhft.lang.io.VanillaMappedFile;
@@ -17,68 +44,444 @@ import net.openhft.lang.io.VanillaMappedMode;
 
 public class NarniaaDB implements Closeable {
 	
-	protected final VanillaMappedFile indexFile;
+	//the log and its view and channel are swapped by compactLog()
+	protected volatile VanillaMappedFile indexFile;
+	protected volatile IndexView indexView;
 	protected final VanillaMappedBlocks dataBlocks;
+	protected final File idxFile;
+	protected final File dataFile;
+	protected final File hashFile;
+	protected volatile FileChannel indexChannel;
+	protected final FileChannel dataChannel;
 	
+	protected final NarniaaConfig config;
 	protected final int blockSize;
+	protected final Durability durability;
 	
 	protected AtomicLong indexMaxOffset = new AtomicLong(0);
 	protected AtomicLong valueMaxOffset = new AtomicLong(0);
-	protected Map<BeniKey, BeniEntry> entries = new ConcurrentHashMap<>();
+	protected final BeniIndex entries;
+	protected final BeniSortedIndex sorted;
+	protected final BlockStats blockStats;
+	protected final NarniaaCompactor compactor;
+	//entered by the readers and writers of values, the compactor reuses a block once they left, see Epoch
+	protected final Epoch epoch = new Epoch();
+	//blocks emptied by the compactor, filled again before the data file grows
+	private final ConcurrentLinkedQueue<Long> freeBlocks = new ConcurrentLinkedQueue<>();
+	private final AtomicReference<Refill> refill = new AtomicReference<>();
+	//null when the metrics are off, so they cost one test on the hot path
+	protected final NarniaaMetrics metrics;
+	//null when neither preallocation nor read-ahead is on
+	protected final BlockAllocator allocator;
+	//seqlocks of the values rewritten in place, by offset, null unless the updates in place are on
+	private final StampedLock[] valueLocks;
+	
+	private final ThreadLocal<long[]> lookups = ThreadLocal.withInitial(() -> new long[3]);
+	private final List<NarniaaSnapshot> snapshots = new CopyOnWriteArrayList<>();
+	//in place rewrites in progress, see update()
+	private final AtomicInteger rewrites = new AtomicInteger();
+	private PeriodicSync syncer;
+	private ExecutorService prefetcher;
+	
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	private static final long PAGE_MASK = 4096 - 1;
+	
+	//how far replay looks for a valid record past a torn one
+	private static final int RESYNC_WINDOW = 16 << 20;
+	
+	private static final int VALUE_LOCK_BITS = 8;
+	
+	//smallest segment of the log replayed by a thread, and bytes replayed between two progress reports
+	private static final long MIN_SEGMENT = 1 << 16;
+	private static final long PROGRESS = 64 << 20;
 	
 	public NarniaaDB(Path path, int blockSize) {
 		this(path, blockSize, false);
 	}
 	
 	public NarniaaDB(Path path, int blockSize, boolean deleteOnExit) {
+		this(path, new NarniaaConfig().blockSize(blockSize).deleteOnExit(deleteOnExit));
+	}
+	
+	public NarniaaDB(Path path, NarniaaConfig config) {
 		super();
+		this.config = config;
+		this.blockSize = config.getBlockSize();
+		this.durability = config.getDurability();
+		this.sorted = config.isSortedIndex() ? new BeniSortedIndex() : null;
+		this.blockStats = new BlockStats(blockSize);
+		this.metrics = config.isMetrics() ? new NarniaaMetrics(this) : null;
+		if (config.isInPlaceUpdates()) {
+			this.valueLocks = new StampedLock[1 << VALUE_LOCK_BITS];
+			for (int i = 0; i < valueLocks.length; i++) {
+				valueLocks[i] = new StampedLock();
+			}
+		} else {
+			this.valueLocks = null;
+		}
+		boolean deleteOnExit = config.isDeleteOnExit();
 		try {
 			File parent = path.toFile().getParentFile();
 			String name = path.toFile().getName();
 			
 			// setup index file
-			File idxFile = new File(parent, name + ".vidx");
+			this.idxFile = new File(parent, name + ".vidx");
 			if (!idxFile.exists()) idxFile.createNewFile();
 			if (deleteOnExit) idxFile.deleteOnExit(); 
 			this.indexFile = new VanillaMappedFile(idxFile, VanillaMappedMode.RW);
+			this.indexView = new IndexView(idxFile);
+			this.entries = new BeniIndex(indexView);
+			this.indexChannel = new RandomAccessFile(idxFile, "rw").getChannel();
 			
 			// setup data file
-			File dataFile = new File(parent, name + ".vdb");
+			this.dataFile = new File(parent, name + ".vdb");
 			if (!dataFile.exists()) dataFile.createNewFile();
 			if (deleteOnExit) dataFile.deleteOnExit();
 			this.dataBlocks = VanillaMappedBlocks.readWrite(dataFile, blockSize);
+			this.dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
 			
+			// saved index, only trusted if it matches the log
+			File hFile = new File(parent, name + ".vhash");
+			if (config.isPersistentIndex()) {
+				if (deleteOnExit) hFile.deleteOnExit();
+				this.hashFile = hFile;
+			} else {
+				// would go stale as soon as we write
+				hFile.delete();
+				this.hashFile = null;
+			}
+			
+			long start = System.nanoTime();
 			open();
+			if (metrics != null) metrics.opened(System.nanoTime() - start);
+			
+			if (config.getPreallocateBlocks() > 0 || config.getReadAheadBlocks() > 0) {
+				this.allocator = new BlockAllocator(dataFile, dataBlocks, dataChannel, blockSize, valueMaxOffset.get(),
+						config.getPreallocateBlocks(), config.getReadAheadBlocks(), metrics);
+			} else {
+				this.allocator = null;
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("Can't create this DB:" + path, e);
 		}
 		
-		this.blockSize = blockSize;
+		entries.listener((key, keyOffset, valueOffset, valueSize, changeOffset) -> {
+			for (NarniaaSnapshot snapshot : snapshots) {
+				snapshot.changed(key, keyOffset, valueOffset, valueSize, changeOffset);
+			}
+		});
+		this.compactor = new NarniaaCompactor(this, config.getCompactionThreshold());
+		if (config.getCompactionInterval() > 0) {
+			compactor.start(config.getCompactionInterval());
+		}
+		if (durability == Durability.PERIODIC) {
+			syncer = new PeriodicSync(this::sync, config.getSyncInterval());
+		}
+		if (metrics != null) metrics.register(path.toAbsolutePath().toString());
 	}
 	
 	public void open() throws IOException {
 		entries.clear();
+		if (sorted != null) sorted.clear();
 		indexMaxOffset.set(0);
-		try (VanillaMappedBytes index = indexFile.bytes(0, indexFile.size())) {
-			while (indexMaxOffset.get() < indexFile.size()) {
-				long valueOffset = index.readLong();
-				long valueSize = index.readLong();
-				int keySize = index.readInt();
-				byte[] key = new byte[keySize];
-				index.readFully(key);
+		if (hashFile != null) {
+			long[][] saved = { null };
+			long dataEnd = entries.load(hashFile, indexFile.size(), trailer -> saved[0] = trailer);
+			if (dataEnd >= 0) {
+				indexMaxOffset.set(indexFile.size());
+				valueMaxOffset.set(dataEnd);
+				if (!blockStats.load(saved[0], dataEnd)) blockStats.rebuild(entries, dataEnd);
+				freeBlocks();
+				return;
+			}
+		}
+		
+		replay();
+		blockStats.rebuild(entries, valueMaxOffset.get());
+		freeBlocks();
+	}
+	
+	/**
+	 * find the blocks below the tail with neither live nor dead bytes, the compactor emptied them.
+	 */
+	private void freeBlocks() {
+		freeBlocks.clear();
+		refill.set(null);
+		for (long block = 0; block < valueMaxOffset.get() / blockSize; block++) {
+			if (blockStats.live(block) == 0 && blockStats.dead(block) == 0) freeBlocks.add(block);
+		}
+	}
+	
+	/**
+	 * rebuild the index by reading the whole log.
+	 *
+	 * The log is cut at record boundaries in segments replayed in parallel, their records are merged in the
+	 * index with the latest record of a key winning, see {@link BeniIndex#merge(int, long, long, long)}. From
+	 * the first invalid record on, the log is replayed sequentially: a record torn while later ones completed,
+	 * as concurrent writers append in parallel, is skipped and overwritten with padding. The log is truncated
+	 * after the last valid record, what follows it was never acknowledged to a synced writer.
+	 */
+	protected void replay() throws IOException {
+		long start = System.nanoTime();
+		long size = indexFile.size();
+		long offset = 0;
+		Replay replay = new Replay(size, config.getRecoveryListener());
+		if (size > 0) {
+			indexView.ensure(size);
+			try (VanillaMappedBytes index = indexFile.bytes(0, size)) {
+				offset = replaySegments(index, size, replay);
+				if (offset < size) offset = replay(index, offset, size, replay);
+			}
+		}
+		if (offset < size) {
+			indexChannel.truncate(offset);
+			indexChannel.force(true);
+		}
+		indexMaxOffset.set(offset);
+		if (replay.listener != null) replay.listener.recovered(replay.records.get(), offset, System.nanoTime() - start);
+	}
+	
+	/**
+	 * replay the segments of the log in parallel.
+	 * @return offset of the first invalid record, size if there is none
+	 */
+	private long replaySegments(VanillaMappedBytes index, long size, Replay replay) throws IOException {
+		int threads = Math.max(1, config.getRecoveryThreads());
+		long[] bounds = split(index, size, 4 * threads);
+		int parts = bounds.length - 1;
+		long[] ends = new long[parts];
+		long[] valueEnds = new long[parts];
+		long[] merged = new long[parts];
+		if (parts == 1) {
+			replaySegment(index, 0, bounds, ends, valueEnds, merged, replay);
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(Math.min(threads, parts));
+			try {
+				List<Callable<Void>> tasks = new ArrayList<>(parts);
+				for (int i = 0; i < parts; i++) {
+					int part = i;
+					tasks.add(() -> {
+						replaySegment(index, part, bounds, ends, valueEnds, merged, replay);
+						return null;
+					});
+				}
+				for (Future<Void> task : pool.invokeAll(tasks)) {
+					task.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while replaying " + indexFile.path(), e);
+			} catch (ExecutionException e) {
+				throw new IOException("Can't replay " + indexFile.path(), e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+		}
+		entries.purge();
+		
+		for (int i = 0; i < parts; i++) {
+			if (valueEnds[i] > valueMaxOffset.get()) valueMaxOffset.set(valueEnds[i]);
+			if (ends[i] == bounds[i + 1]) continue;
+			for (int j = i + 1; j < parts; j++) {
+				if (merged[j] == 0) continue;
+				//the segments after an invalid record were cut at random, start again sequentially
+				entries.clear();
+				valueMaxOffset.set(0);
+				replay.records.set(0);
+				return 0;
+			}
+			return ends[i];
+		}
+		return size;
+	}
+	
+	/**
+	 * walk the log from record size to record size, without checking the records.
+	 * @return the bounds of the segments, from 0 to size
+	 */
+	private static long[] split(VanillaMappedBytes index, long size, int parts) {
+		long target = Math.max(MIN_SEGMENT, size / parts);
+		long[] bounds = new long[parts + 2];
+		int count = 0;
+		bounds[count++] = 0;
+		long offset = 0;
+		long next = target;
+		while (count < parts && offset + BeniRecord.size(0) <= size) {
+			int keySize = index.readInt(offset + BeniRecord.KEY_SIZE_POSITION);
+			if (keySize < 0 || offset + BeniRecord.size(0) + keySize > size) break;
+			offset += BeniRecord.size(0) + keySize;
+			if (offset >= next && offset < size) {
+				bounds[count++] = offset;
+				next = offset + target;
+			}
+		}
+		bounds[count++] = size;
+		return Arrays.copyOf(bounds, count);
+	}
+	
+	private void replaySegment(VanillaMappedBytes index, int part, long[] bounds, long[] ends, long[] valueEnds,
+			long[] merged, Replay replay) {
+		BeniRecord record = BeniRecord.get();
+		long offset = bounds[part];
+		long end = bounds[part + 1];
+		long valueEnd = 0;
+		long records = 0;
+		long reported = offset;
+		while (offset < end) {
+			int length = record.check(index, offset, end);
+			if (length < 0) break;
+			long valueOffset = index.readLong(offset);
+			long valueSize = index.readLong(offset + BeniRecord.VALUE_SIZE_POSITION);
+			if (valueSize != BeniRecord.PADDING) {
+				if (valueSize != BeniRecord.TOMBSTONE) {
+					if (valueOffset < 0 || valueSize < 0) break;
+					valueEnd = Math.max(valueEnd, valueOffset + valueSize);
+				}
+				entries.merge(record.checkedHash(length - entrySize(0)), offset, valueOffset, valueSize);
+				records++;
+			}
+			offset += length;
+			if (offset - reported >= PROGRESS) {
+				replay.progress(offset - reported);
+				reported = offset;
+			}
+		}
+		replay.progress(offset - reported);
+		replay.records.addAndGet(records);
+		ends[part] = offset;
+		valueEnds[part] = valueEnd;
+		merged[part] = records;
+	}
+	
+	/**
+	 * replay the log sequentially from offset, resyncing after the invalid records.
+	 * @return offset after the last valid record
+	 */
+	private long replay(VanillaMappedBytes index, long offset, long size, Replay replay) throws IOException {
+		BeniRecord record = BeniRecord.get();
+		long reported = offset;
+		while (offset < size) {
+			int length = record.check(index, offset, size);
+			if (length < 0) {
+				long next = resync(index, record, offset, size);
+				if (next < 0) break;
+				pad(offset, (int)(next - offset));
+				offset = next;
+				continue;
+			}
+			long valueOffset = index.readLong(offset);
+			long valueSize = index.readLong(offset + BeniRecord.VALUE_SIZE_POSITION);
+			if (valueSize == BeniRecord.TOMBSTONE) {
+				entries.remove(record.checkedKey(length - entrySize(0)), null);
+				replay.records.incrementAndGet();
+			} else if (valueSize != BeniRecord.PADDING) {
+				if (valueOffset < 0 || valueSize < 0) break;
+				byte[] key = record.checkedKey(length - entrySize(0));
 				if ((valueOffset  + valueSize) > valueMaxOffset.get()) {
 					valueMaxOffset.set(valueOffset + valueSize);  
 				}
-				entries.put(new BeniKey(key), new BeniEntry(valueOffset, valueSize, indexMaxOffset.getAndAdd(entrySize(keySize))));
+				entries.put(key, valueOffset, valueSize, offset);
+				replay.records.incrementAndGet();
+			}
+			offset += length;
+			if (offset - reported >= PROGRESS) {
+				replay.progress(offset - reported);
+				reported = offset;
+			}
+		}
+		return offset;
+	}
+	
+	/**
+	 * progress of a replay, shared by the threads replaying the segments.
+	 */
+	private static class Replay {
+		final long size;
+		final RecoveryListener listener;
+		final AtomicLong replayed = new AtomicLong();
+		final AtomicLong records = new AtomicLong();
+		
+		Replay(long size, RecoveryListener listener) {
+			this.size = size;
+			this.listener = listener;
+		}
+		
+		void progress(long bytes) {
+			long total = replayed.addAndGet(bytes);
+			if (listener != null && bytes > 0) listener.progress(total, size);
+		}
+	}
+	
+	/**
+	 * @return offset of the next valid record after the invalid one at offset, -1 if there is none close enough
+	 */
+	private long resync(VanillaMappedBytes index, BeniRecord record, long offset, long size) {
+		long end = Math.min(size, offset + RESYNC_WINDOW);
+		for (long next = offset + entrySize(0); next + entrySize(0) <= end; next++) {
+			if (record.check(index, next, size) > 0) return next;
+		}
+		return -1;
+	}
+	
+	private void pad(long offset, int length) throws IOException {
+		BeniRecord record = BeniRecord.get();
+		ByteBuffer buffer = record.buffer(length);
+		record.encode(buffer, 0, BeniRecord.PADDING, new byte[length - entrySize(0)]);
+		write(buffer, offset);
+		indexChannel.force(false);
+	}
+	
+	/**
+	 * force the values then the records written so far to disk.
+	 */
+	public void sync() throws IOException {
+		dataChannel.force(false);
+		forceLog();
+	}
+	
+	/**
+	 * force the log, on the channel of the new log if compactLog() swapped it meanwhile.
+	 */
+	private void forceLog() throws IOException {
+		while (true) {
+			FileChannel channel = indexChannel;
+			try {
+				channel.force(false);
+				return;
+			} catch (ClosedChannelException e) {
+				if (channel == indexChannel) throw e;
 			}
 		}
 	}
 	
 	public void close() {
-		entries.clear();
+		close(true);
+	}
+	
+	/**
+	 * @param keep: false to close a store about to be deleted, without syncing it or saving its hash file
+	 */
+	protected void close(boolean keep) {
+		if (metrics != null) metrics.unregister();
+		if (compactor != null) compactor.close();
+		synchronized (this) {
+			if (prefetcher != null) prefetcher.shutdown();
+		}
+		if (allocator != null) allocator.close();
+		if (syncer != null) syncer.close();
+		Refill last = refill.getAndSet(null);
+		if (last != null) closeRefill(last);
 		try {
+			if (keep && durability != Durability.NONE) sync();
+			if (keep && hashFile != null) {
+				entries.save(hashFile, indexFile.size(), valueMaxOffset.get(), blockStats.save(valueMaxOffset.get()));
+			}
+			entries.close();
+			indexView.close();
 			indexFile.close();
 			dataBlocks.close();
+			indexChannel.close();
+			dataChannel.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -90,86 +493,1168 @@ public class NarniaaDB implements Closeable {
 	}
 	
 	public boolean put(byte[] key, byte[] value) throws IOException {
+		if (metrics == null) return putValue(key, value);
+		long start = System.nanoTime();
+		try {
+			return putValue(key, value);
+		} finally {
+			metrics.put(System.nanoTime() - start, value.length);
+		}
+	}
+	
+	private boolean putValue(byte[] key, byte[] value) throws IOException {
 		Objects.requireNonNull(key);
 		Objects.requireNonNull(value);
+		final boolean sync = durability == Durability.SYNC;
+		if (valueLocks != null && update(key, value, sync)) return true;
 		
 		//capture the offset to add the entry
 		final int valueSize = value.length;
-		final long valueOffset = valueMaxOffset.getAndAdd(valueSize);
-		final BeniKey okey = new BeniKey(key);
-		
-		int blockOffset = (int)(valueOffset % blockSize);
-		int blockindex = (int)((valueOffset - blockOffset) / blockSize);
+		int slot = epoch.enter();
+		try {
+			final long valueOffset = allocate(valueSize);
+			if (metrics != null && valueOffset % blockSize + valueSize > blockSize) metrics.crossBlock();
+			writeValue(valueOffset, value, sync);
+			return publish(key, valueOffset, valueSize);
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	/**
+	 * rewrite the value of the key where it is if it has the same size, under its seqlock only so the readers
+	 * copying it try again. Its record is then appended under the segment lock if the entry wasn't changed
+	 * meanwhile. Not while a snapshot is open, it may still read the value.
+	 * @return false if the value has to be appended
+	 */
+	private boolean update(byte[] key, byte[] value, boolean sync) throws IOException {
+		int slot = epoch.enter();
+		try {
+			long[] entry = lookups.get();
+			if (!entries.lookup(key, entry) || entry[1] != value.length) return false;
+			final long valueOffset = entry[0];
+			final long keyOffset = entry[2];
+			//counted before the snapshots are checked, a new snapshot waits for the rewrites it missed
+			rewrites.incrementAndGet();
+			try {
+				if (!snapshots.isEmpty()) return false;
+				StampedLock lock = valueLock(valueOffset);
+				long stamp = lock.writeLock();
+				try {
+					writeValue(valueOffset, value, false);
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+			} finally {
+				rewrites.decrementAndGet();
+			}
+			if (sync) dataChannel.force(false);
+			//updated or moved meanwhile, the bytes written are dead (the epoch keeps their block): append the value
+			if (!entries.update(key, valueOffset, keyOffset, () -> append(valueOffset, value.length, key))) return false;
+		} finally {
+			epoch.exit(slot);
+		}
+		if (sync) forceLog();
+		if (metrics != null) metrics.updatedInPlace();
+		return true;
+	}
+	
+	/**
+	 * @return the seqlock of the value at this offset
+	 */
+	private StampedLock valueLock(long valueOffset) {
+		return valueLocks[(int) ((valueOffset * 0x9e3779b97f4a7c15L) >>> (64 - VALUE_LOCK_BITS))];
+	}
+	
+	/**
+	 * write the value at valueOffset, block by block.
+	 */
+	private void writeValue(long valueOffset, byte[] value, boolean sync) throws IOException {
+		final int valueSize = value.length;
+		long offset = valueOffset;
 		int written = 0;
-		int remaining = valueSize;
 		while (written < valueSize) {
-			VanillaMappedBytes bytes = dataBlocks.acquire(blockindex);
-			bytes.position(blockOffset);
+			VanillaMappedBytes bytes = acquire(offset / blockSize);
 			try {
-				int towrite = Math.min((int)bytes.remaining(), (int)(remaining));
-				bytes.write(value, written, towrite);
+				int blockOffset = (int)(offset % blockSize);
+				int towrite = Math.min(blockSize - blockOffset, valueSize - written);
+				bytes.write(blockOffset, value, written, towrite);
+				if (sync) bytes.force();
 				written += towrite;
-				remaining -= towrite;
+				offset += towrite;
 			} finally {
 				bytes.release();
-				blockOffset = 0;
-				blockindex++;
 			}
-			
 		}
+	}
+	
+	/**
+	 * put a value streamed from a channel, moved block by block by the file system without a buffer on heap,
+	 * so it can be bigger than 2 GB.
+	 * @param size: number of bytes to read from src
+	 * @throws EOFException if src ends before size bytes, nothing is put then
+	 */
+	public boolean put(byte[] key, ReadableByteChannel src, long size) throws IOException {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(src);
+		int slot = epoch.enter();
+		try {
+			final long valueOffset = allocate(size);
+			grow(valueOffset + size);
+			long written = 0;
+			while (written < size) {
+				long transferred = dataChannel.transferFrom(src, valueOffset + written, size - written);
+				if (transferred <= 0) {
+					//the range is lost, let the compaction have it
+					blockStats.live(valueOffset, size);
+					blockStats.dead(valueOffset, size);
+					throw new EOFException("Channel ended after " + written + " of " + size + " bytes");
+				}
+				written += transferred;
+			}
+			if (durability == Durability.SYNC) dataChannel.force(false);
+			if (metrics != null) metrics.written(size);
+			return publish(key, valueOffset, size);
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	/**
+	 * put the bytes between the position and the limit of the buffer, written with positional writes on the
+	 * data file: from a direct buffer they are copied once, by the file system. The position of the buffer is
+	 * moved to its limit.
+	 */
+	public boolean put(byte[] key, ByteBuffer value) throws IOException {
+		Objects.requireNonNull(key);
+		final int valueSize = value.remaining();
+		int slot = epoch.enter();
+		try {
+			final long valueOffset = allocate(valueSize);
+			grow(valueOffset + valueSize);
+			long offset = valueOffset;
+			while (value.hasRemaining()) {
+				offset += dataChannel.write(value, offset);
+			}
+			if (durability == Durability.SYNC) dataChannel.force(false);
+			if (metrics != null) metrics.written(valueSize);
+			return publish(key, valueOffset, valueSize);
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	/**
+	 * map the block holding end before writing up to it with the channel. Mapping grows the file by checking
+	 * its size then truncating it, which would cut what a positional write put past the old size meanwhile:
+	 * once the file covers the range, positional writes never grow it and the blocks are only mapped under
+	 * the lock of dataBlocks.
+	 */
+	private void grow(long end) throws IOException {
+		if (end > dataChannel.size()) acquire((end - 1) / blockSize).release();
+	}
+	
+	/**
+	 * take size bytes in the free block being filled again, or at the end of the data file.
+	 * @return offset of the range
+	 */
+	private long allocate(long size) {
+		if (refill.get() != null || !freeBlocks.isEmpty()) {
+			long offset = refill(size);
+			if (offset >= 0) return offset;
+		}
+		long offset = valueMaxOffset.getAndAdd(size);
+		if (allocator != null) allocator.written(offset + size);
+		return offset;
+	}
+	
+	/**
+	 * @return offset of size bytes taken in a free block, -1 if there is no room
+	 */
+	private long refill(long size) {
+		if (size > blockSize) return -1;
+		while (true) {
+			Refill current = refill.get();
+			if (current != null) {
+				long offset = current.take(size);
+				if (offset >= 0) return offset;
+				//a big value goes to the tail rather than leave much of the block unused
+				if (current.remaining() >= blockSize / 8) return -1;
+			}
+			Long block = freeBlocks.poll();
+			if (block == null) return -1;
+			if (!refill.compareAndSet(current, new Refill(block * blockSize, blockSize))) {
+				freeBlocks.add(block);
+				continue;
+			}
+			if (current != null) closeRefill(current);
+		}
+	}
+	
+	/**
+	 * stop filling the block, what is left of it is dead and left to the compaction.
+	 */
+	private void closeRefill(Refill current) {
+		long from = current.close();
+		if (from < current.end) {
+			blockStats.live(from, current.end - from);
+			blockStats.dead(from, current.end - from);
+		}
+	}
+	
+	/**
+	 * @return true if the writers are filling this block again
+	 */
+	protected boolean refilling(long block) {
+		Refill current = refill.get();
+		return current != null && current.start / blockSize == block;
+	}
+	
+	/**
+	 * hand a block emptied by the compactor back to the writers.
+	 */
+	protected void free(long block) {
+		freeBlocks.add(block);
+	}
+	
+	/**
+	 * a free block being filled again, from its start to its end.
+	 */
+	private static final class Refill {
+		final long start;
+		final long end;
+		final AtomicLong next;
 		
-		//create or recyle the entry
-		BeniEntry entry = entries.get(okey);
-		int keySize = key.length;
-		int entrySize = entrySize(keySize);
-		long keyOffset = entry != null ? entry.getKeyOffset() : indexMaxOffset.getAndAdd(entrySize);
-		synchronized (entries) {
-			VanillaMappedBytes index = indexFile.bytes(keyOffset, entrySize);
-			index.writeLong(valueOffset);
-			index.writeLong(valueSize);
-			index.writeInt(keySize);
-			index.write(key);
-			return entries.put(okey, new BeniEntry(valueOffset, valueSize, keyOffset)) != null;
+		Refill(long start, long size) {
+			this.start = start;
+			this.end = start + size;
+			this.next = new AtomicLong(start);
 		}
 		
+		/**
+		 * @return offset of the range taken, -1 if the block doesn't have size bytes left
+		 */
+		long take(long size) {
+			while (true) {
+				long offset = next.get();
+				if (offset + size > end) return -1;
+				if (next.compareAndSet(offset, offset + size)) return offset;
+			}
+		}
+		
+		long remaining() {
+			return Math.max(0, end - next.get());
+		}
+		
+		/**
+		 * @return offset of what is left of the block, nothing more is taken from it
+		 */
+		long close() {
+			return next.getAndSet(end);
+		}
+	}
+	
+	/**
+	 * publish the value written at valueOffset, the record is appended under the lock of the key's segment
+	 * only, see BeniIndex, and forced once the lock is released.
+	 * @return true if the key was already in the map
+	 */
+	private boolean publish(byte[] key, long valueOffset, long valueSize) throws IOException {
+		long[] entry = lookups.get();
+		blockStats.live(valueOffset, valueSize);
+		boolean replaced = entries.put(key, valueOffset, valueSize, () -> {
+			if (sorted != null) sorted.add(key);
+			return append(valueOffset, valueSize, key);
+		}, entry);
+		if (durability == Durability.SYNC) forceLog();
+		if (replaced) blockStats.dead(entry[0], entry[1]);
+		return replaced;
+	}
+	
+	/**
+	 * append one record to the log, forced by the caller once it released the segment lock.
+	 * @return offset of the record
+	 */
+	private long append(long valueOffset, long valueSize, byte[] key) throws IOException {
+		BeniRecord record = BeniRecord.get();
+		int entrySize = entrySize(key.length);
+		ByteBuffer buffer = record.buffer(entrySize);
+		record.encode(buffer, valueOffset, valueSize, key);
+		long keyOffset = indexMaxOffset.getAndAdd(entrySize);
+		writeReserved(buffer, keyOffset);
+		return keyOffset;
+	}
+	
+	/**
+	 * write encoded records at offset in the log. Positional writes on the channel need no lock and, unlike
+	 * mapping a region per record, don't serialise the writers in the kernel.
+	 */
+	private void write(ByteBuffer records, long offset) throws IOException {
+		records.flip();
+		while (records.hasRemaining()) {
+			offset += indexChannel.write(records, offset);
+		}
+	}
+	
+	/**
+	 * write encoded records in the range of the log reserved for them. If the write fails the range is
+	 * padded, as a replay would do: the records after it are valid and tailers must not wait at its start.
+	 */
+	private void writeReserved(ByteBuffer records, long offset) throws IOException {
+		int length = records.position();
+		try {
+			write(records, offset);
+		} catch (IOException | RuntimeException e) {
+			//an interrupt closes the channel of the store, the padding goes through one of its own
+			boolean interrupted = Thread.interrupted();
+			try (FileChannel log = FileChannel.open(idxFile.toPath(), StandardOpenOption.WRITE)) {
+				BeniRecord record = BeniRecord.get();
+				ByteBuffer padding = record.buffer(length);
+				record.encode(padding, 0, BeniRecord.PADDING, new byte[length - entrySize(0)]);
+				padding.flip();
+				long position = offset;
+				while (padding.hasRemaining()) {
+					position += log.write(padding, position);
+				}
+				log.force(false);
+			} catch (IOException | RuntimeException padding) {
+				e.addSuppressed(padding);
+			} finally {
+				if (interrupted) Thread.currentThread().interrupt();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * remove the key from the map. A tombstone record is appended to the log so the removal survives a reopen,
+	 * the bytes of the value are left to the compaction.
+	 * @return true if the key was in the map
+	 */
+	public boolean remove(byte[] key) throws IOException {
+		Objects.requireNonNull(key);
+		long[] entry = lookups.get();
+		if (!entries.remove(key, () -> {
+			long keyOffset = append(0, BeniRecord.TOMBSTONE, key);
+			if (sorted != null) sorted.remove(key);
+			return keyOffset;
+		}, entry)) return false;
+		if (durability == Durability.SYNC) forceLog();
+		blockStats.dead(entry[0], entry[1]);
+		return true;
+	}
+	
+	/**
+	 * write all the pairs of the batch, see {@link WriteBatch}.
+	 * A crash while the batch is written keeps its records up to the last complete one.
+	 * @param sync: force the data and index written to disk before returning, always true with {@link Durability#SYNC}
+	 * @return number of keys that were already in the map
+	 */
+	public int write(WriteBatch batch, boolean sync) throws IOException {
+		if (batch.size() == 0) return 0;
+		final boolean force = sync || durability == Durability.SYNC;
+		if (metrics != null) metrics.written(batch.dataSize());
+		
+		//last put of a key wins
+		Map<ByteBuffer, Integer> last = new HashMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			last.put(ByteBuffer.wrap(batch.key(i)), i);
+		}
+		final int count = last.size();
+		byte[][] keys = new byte[count][];
+		byte[][] values = new byte[count][];
+		long dataSize = 0;
+		for (int i = 0, n = 0; i < batch.size(); i++) {
+			if (last.get(ByteBuffer.wrap(batch.key(i))) != i) continue;
+			keys[n] = batch.key(i);
+			values[n++] = batch.value(i);
+			dataSize += batch.value(i).length;
+		}
+		int slot = epoch.enter();
+		try {
+			return writeAll(count, keys, values, dataSize, force);
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	/**
+	 * write the last values of the keys of a batch and publish them.
+	 * @return number of keys that were already in the map
+	 */
+	private int writeAll(int count, byte[][] keys, byte[][] values, long dataSize, boolean force) throws IOException {
+		//one range for all the values, written in a single pass over the blocks
+		long[] valueOffsets = new long[count];
+		long[] valueSizes = new long[count];
+		long offset = allocate(dataSize);
+		VanillaMappedBytes block = null;
+		long blockindex = -1;
+		try {
+			for (int i = 0; i < count; i++) {
+				valueOffsets[i] = offset;
+				valueSizes[i] = values[i].length;
+				int written = 0;
+				while (written < values[i].length) {
+					if (offset / blockSize != blockindex) {
+						if (block != null) {
+							if (force) block.force();
+							block.release();
+							block = null;
+						}
+						blockindex = offset / blockSize;
+						block = acquire(blockindex);
+					}
+					int blockOffset = (int)(offset % blockSize);
+					int towrite = Math.min(blockSize - blockOffset, values[i].length - written);
+					block.write(blockOffset, values[i], written, towrite);
+					written += towrite;
+					offset += towrite;
+				}
+			}
+		} finally {
+			if (block != null) {
+				if (force) block.force();
+				block.release();
+			}
+		}
+		
+		//one range of the log for all the records, appended once their segments are locked
+		long[] keyOffsets = new long[count];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			size += entrySize(keys[i].length);
+		}
+		final int indexSize = size;
+		for (int i = 0; i < count; i++) {
+			blockStats.live(valueOffsets[i], valueSizes[i]);
+		}
+		long[] previous = new long[2 * count];
+		int existed = entries.putAll(count, keys, valueOffsets, valueSizes, keyOffsets, () -> {
+			BeniRecord record = BeniRecord.get();
+			ByteBuffer buffer = record.buffer(indexSize);
+			long indexOffset = indexMaxOffset.getAndAdd(indexSize);
+			for (int i = 0; i < count; i++) {
+				keyOffsets[i] = indexOffset + buffer.position();
+				record.encode(buffer, valueOffsets[i], valueSizes[i], keys[i]);
+				if (sorted != null) sorted.add(keys[i]);
+			}
+			writeReserved(buffer, indexOffset);
+			return indexOffset;
+		}, previous);
+		//forced once the segments are released, as the values were before
+		if (force) forceLog();
+		for (int i = 0; i < count; i++) {
+			if (previous[2 * i] >= 0) blockStats.dead(previous[2 * i], previous[2 * i + 1]);
+		}
+		return existed;
+	}
+	
+	/**
+	 * take a point in time view of the store, see {@link NarniaaSnapshot}. It must be closed once done with.
+	 */
+	public NarniaaSnapshot snapshot() {
+		//no writer holds a record before the end without having published it
+		NarniaaSnapshot snapshot = entries.exclusive(() -> {
+			NarniaaSnapshot taken = new NarniaaSnapshot(this, indexMaxOffset.get(), valueMaxOffset.get(), epoch.enter());
+			snapshots.add(taken);
+			return taken;
+		});
+		//values being rewritten in place before the snapshot was seen
+		while (rewrites.get() > 0) {
+			Thread.yield();
+		}
+		return snapshot;
+	}
+	
+	void release(NarniaaSnapshot snapshot) {
+		snapshots.remove(snapshot);
+		epoch.exit(snapshot.slot());
+	}
+	
+	/**
+	 * run one compaction of the data file, see {@link NarniaaCompactor}
+	 * @return number of blocks compacted
+	 */
+	public int compact() throws IOException {
+		return compactor.runOnce();
+	}
+	
+	/**
+	 * rewrite the log with the record of each entry only and swap it in: otherwise the log keeps a record per
+	 * put, update and removal, and the replay on open reads them all. Readers and writers wait while it runs.
+	 *
+	 * Tailers opened before keep reading the old log, they must be opened again and read the new one from
+	 * its start. The key offsets of the entries change.
+	 * @return number of bytes the log shrank by
+	 * @throws IllegalStateException while a snapshot is open, its changes refer to the old log
+	 */
+	public long compactLog() throws IOException {
+		//the compactor reads keys at the offsets of the entries it moves
+		synchronized (compactor) {
+			File compacted = new File(idxFile.getPath() + ".compact");
+			Files.deleteIfExists(compacted.toPath());
+			FileChannel log = new RandomAccessFile(compacted, "rw").getChannel();
+			long[] sizes = new long[2];
+			try {
+				BeniRecord record = BeniRecord.get();
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+				entries.rewrite(new BeniIndex.LogRewriter() {
+					long position;
+					
+					@Override
+					public long write(long keyOffset, long valueOffset, long valueSize) throws IOException {
+						if (!snapshots.isEmpty()) throw new IllegalStateException("Can't compact the log of " + idxFile + " while a snapshot is open");
+						byte[] key = indexView.key(keyOffset);
+						int entrySize = entrySize(key.length);
+						if (buffer.remaining() < entrySize) flush();
+						ByteBuffer into = entrySize > buffer.capacity() ? record.buffer(entrySize) : buffer;
+						record.encode(into, valueOffset, valueSize, key);
+						if (into != buffer) {
+							into.flip();
+							write(into);
+						}
+						long offset = position;
+						position += entrySize;
+						return offset;
+					}
+					
+					@Override
+					public IndexView swap() throws IOException {
+						flush();
+						//the new log must not refer to values lost in a crash
+						dataChannel.force(false);
+						log.force(true);
+						//opened before the move, which they follow, so nothing is left to fail once the log is replaced
+						VanillaMappedFile file = new VanillaMappedFile(compacted, VanillaMappedMode.RW);
+						IndexView view = new IndexView(compacted);
+						try {
+							Files.move(compacted.toPath(), idxFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+						} catch (IOException e) {
+							view.close();
+							file.close();
+							throw e;
+						}
+						sizes[0] = indexMaxOffset.get();
+						sizes[1] = position;
+						VanillaMappedFile oldFile = indexFile;
+						IndexView oldView = indexView;
+						FileChannel oldChannel = indexChannel;
+						indexFile = file;
+						indexView = view;
+						indexChannel = log;
+						indexMaxOffset.set(position);
+						try {
+							oldFile.close();
+							oldView.retire();
+							oldChannel.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						return view;
+					}
+					
+					private void flush() throws IOException {
+						buffer.flip();
+						write(buffer);
+						buffer.clear();
+					}
+					
+					private void write(ByteBuffer records) throws IOException {
+						while (records.hasRemaining()) {
+							log.write(records);
+						}
+					}
+				});
+			} catch (IOException | RuntimeException e) {
+				log.close();
+				Files.deleteIfExists(compacted.toPath());
+				throw e;
+			}
+			return sizes[0] - sizes[1];
+		}
+	}
+	
+	/**
+	 * copy a value to the tail of the data file and move its entry there, unless it was updated meanwhile.
+	 * The move appends a new record for the key, like an update.
+	 * @return true if the entry was moved
+	 */
+	protected boolean relocate(int hash, long keyOffset, long valueOffset, long valueSize) throws IOException {
+		final long relocated = allocate(valueSize);
+		//a value rewritten in place during the copy is left for the next run
+		StampedLock lock = valueLocks == null ? null : valueLock(valueOffset);
+		long stamp = lock == null ? 0 : lock.tryOptimisticRead();
+		try (BeniValue source = view(valueOffset, valueSize)) {
+			copy(source, relocated);
+		}
+		if (durability == Durability.SYNC) dataChannel.force(false);
+		byte[] key = indexView.key(keyOffset);
+		blockStats.live(relocated, valueSize);
+		if (!entries.relocate(hash, keyOffset, valueOffset, relocated,
+				() -> lock != null && !lock.validate(stamp) ? -1 : append(relocated, valueSize, key))) {
+			blockStats.dead(relocated, valueSize);
+			return false;
+		}
+		if (durability == Durability.SYNC) forceLog();
+		blockStats.dead(valueOffset, valueSize);
+		return true;
+	}
+	
+	/**
+	 * write the bytes of a value at valueOffset in the data blocks
+	 */
+	protected void copy(BeniValue source, long valueOffset) throws IOException {
+		source.visit((fragment, position) -> {
+			long offset = valueOffset + position;
+			long from = 0;
+			long remaining = fragment.remaining();
+			while (remaining > 0) {
+				VanillaMappedBytes bytes = acquire(offset / blockSize);
+				try {
+					long blockOffset = offset % blockSize;
+					long towrite = Math.min(blockSize - blockOffset, remaining);
+					bytes.write(blockOffset, fragment.bytes(from, towrite));
+					from += towrite;
+					offset += towrite;
+					remaining -= towrite;
+				} finally {
+					bytes.release();
+				}
+			}
+		});
 	}
 	
 	/**
 	 * @param key: key use for lookup
 	 * @return the array of byte of value matching the key, null if the key is not in the map
+	 * @throws IllegalStateException if the value is too big for an array, use {@link #get(byte[], WritableByteChannel)}
 	 * @throws IOException 
 	 */
 	public byte[] get(byte[] key) throws IOException {
-		BeniEntry entry = entries.get(new BeniKey(key));
-		if (entry == null) return null;
-		byte[] bytes = new byte[(int)entry.getValueSize()];
-				
-		int blockOffset = (int)(entry.getValueOffset() % blockSize);
-		int blockindex = (int)((entry.getValueOffset() - blockOffset) / blockSize);
+		if (metrics == null) return getValue(key);
+		long start = System.nanoTime();
+		byte[] value = getValue(key);
+		metrics.get(System.nanoTime() - start, value == null ? 0 : value.length);
+		return value;
+	}
+	
+	private byte[] getValue(byte[] key) throws IOException {
+		int slot = epoch.enter();
+		try {
+			return getValue(key, lookups.get());
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	private byte[] getValue(byte[] key, long[] entry) throws IOException {
+		if (!entries.lookup(key, entry)) return null;
+		final long valueOffset = entry[0];
+		if (entry[1] > MAX_ARRAY) throw new IllegalStateException("Value of " + entry[1] + " bytes, stream it to a channel");
+		final int valueSize = (int)entry[1];
+		byte[] bytes = new byte[valueSize];
+		if (allocator != null) allocator.read(valueOffset / blockSize);
+		if (valueLocks == null) {
+			readValue(valueOffset, bytes);
+			return bytes;
+		}
+		
+		//copied again if it was rewritten in place meanwhile
+		StampedLock lock = valueLock(valueOffset);
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			readValue(valueOffset, bytes);
+			if (lock.validate(stamp)) return bytes;
+		}
+		stamp = lock.readLock();
+		try {
+			readValue(valueOffset, bytes);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * copy the value at valueOffset, block by block. Absolute reads, the mapped blocks are shared between
+	 * threads.
+	 */
+	private void readValue(long valueOffset, byte[] bytes) throws IOException {
+		final int valueSize = bytes.length;
+		long offset = valueOffset;
 		int read = 0;
-		int remaining = (int)entry.getValueSize();
-		while (read < entry.getValueSize()) {
-			VanillaMappedBytes mbytes = dataBlocks.acquire(blockindex++);
-			if (read == 0) {
-				mbytes.position(blockOffset);
-			} else {
-				mbytes.position(0);
-			}
+		while (read < valueSize) {
+			VanillaMappedBytes mbytes = acquire(offset / blockSize);
 			try {
-				int toread = Math.min((int)mbytes.capacity(), remaining);
-				int bread = mbytes.read(bytes, read, toread);
-				read += bread;
-				remaining -= bread;
+				int blockOffset = (int)(offset % blockSize);
+				int toread = Math.min(blockSize - blockOffset, valueSize - read);
+				mbytes.readFully(blockOffset, bytes, read, toread);
+				read += toread;
+				offset += toread;
 			} finally {
 				mbytes.release();
 			}
 		}
-		
-		return bytes;
+	}
+	
+	/**
+	 * @return the data block, to release once done with
+	 */
+	protected VanillaMappedBytes acquire(long block) throws IOException {
+		if (metrics != null) metrics.blockAcquired();
+		if (allocator != null) {
+			VanillaMappedBytes prepared = allocator.acquire(block);
+			if (prepared != null) return prepared;
+		}
+		return dataBlocks.acquire(block);
+	}
+	
+	/**
+	 * @return the counters of the store, null unless {@link NarniaaConfig#metrics(boolean)} is set
+	 */
+	public NarniaaMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @param from: first key, inclusive, null to start from the first key
+	 * @param to: last key, exclusive, null to go up to the last key
+	 * @return the pairs of this range, in the unsigned order of the key bytes
+	 * @throws IllegalStateException if the store has no sorted index, see {@link NarniaaConfig#sortedIndex(boolean)}
+	 */
+	public BeniScan scan(byte[] from, byte[] to) {
+		return new BeniScan(this, sorted().range(from, to).iterator());
+	}
+	
+	/**
+	 * @return the sorted index, with the keys of the index loaded on open
+	 * @throws IllegalStateException if the store has no sorted index
+	 */
+	protected BeniSortedIndex sorted() {
+		if (sorted == null) throw new IllegalStateException("No sorted index, see NarniaaConfig.sortedIndex");
+		sorted.build(entries, indexView);
+		return sorted;
+	}
+	
+	/**
+	 * @return the pairs whose key starts with prefix, in key order
+	 */
+	public BeniScan prefixScan(byte[] prefix) {
+		return scan(prefix, BeniSortedIndex.successor(prefix));
+	}
+	
+	/**
+	 * read several values at once, in the order of their offsets: each data block is acquired once for all
+	 * the values it holds.
+	 * @param into: filled with the values, in the order of the offsets given
+	 */
+	protected void readValues(int count, long[] valueOffsets, long[] valueSizes, byte[][] into) throws IOException {
+		Integer[] order = byOffset(count, valueOffsets);
+		VanillaMappedBytes block = null;
+		long blockindex = -1;
+		try {
+			for (int i : order) {
+				long offset = valueOffsets[i];
+				if (valueSizes[i] > MAX_ARRAY) throw new IllegalStateException("Value of " + valueSizes[i] + " bytes, stream it to a channel");
+				int valueSize = (int) valueSizes[i];
+				byte[] bytes = new byte[valueSize];
+				StampedLock lock = valueLocks == null ? null : valueLock(offset);
+				long stamp = lock == null ? 0 : lock.tryOptimisticRead();
+				int read = 0;
+				while (read < valueSize) {
+					if (offset / blockSize != blockindex) {
+						if (block != null) {
+							block.release();
+							block = null;
+						}
+						blockindex = offset / blockSize;
+						if (allocator != null) allocator.read(blockindex);
+						block = acquire(blockindex);
+					}
+					int blockOffset = (int)(offset % blockSize);
+					int toread = Math.min(blockSize - blockOffset, valueSize - read);
+					block.readFully(blockOffset, bytes, read, toread);
+					read += toread;
+					offset += toread;
+				}
+				if (lock != null && !lock.validate(stamp)) {
+					//rewritten in place meanwhile
+					stamp = lock.readLock();
+					try {
+						readValue(valueOffsets[i], bytes);
+					} finally {
+						lock.unlockRead(stamp);
+					}
+				}
+				into[i] = bytes;
+				if (metrics != null) metrics.read(valueSize);
+			}
+		} finally {
+			if (block != null) block.release();
+		}
+	}
+	
+	/**
+	 * @return the indices of the values sorted by offset
+	 */
+	private static Integer[] byOffset(int count, long[] valueOffsets) {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(valueOffsets[a], valueOffsets[b]));
+		return order;
+	}
+	
+	/**
+	 * @return the values of the keys, in the order of the keys, null for the keys not in the map
+	 * @see #getAll(Collection, boolean)
+	 */
+	public List<byte[]> getAll(Collection<byte[]> keys) throws IOException {
+		return getAll(keys, false);
+	}
+	
+	/**
+	 * get several values at once: the keys are looked up first, then the values are read in the order of
+	 * their offsets so the data file is swept forward and each block is acquired once.
+	 * @param prefetch: read ahead the pages of the next values in a background thread while the first ones
+	 * are copied, worth it when the values are not in the page cache
+	 * @return the values of the keys, in the order of the keys, null for the keys not in the map
+	 */
+	public List<byte[]> getAll(Collection<byte[]> keys, boolean prefetch) throws IOException {
+		int count = keys.size();
+		long[] valueOffsets = new long[count];
+		long[] valueSizes = new long[count];
+		int[] positions = new int[count];
+		long[] entry = lookups.get();
+		int found = 0;
+		int position = 0;
+		byte[][] values;
+		int slot = epoch.enter();
+		try {
+			for (byte[] key : keys) {
+				if (entries.lookup(key, entry)) {
+					valueOffsets[found] = entry[0];
+					valueSizes[found] = entry[1];
+					positions[found++] = position;
+				}
+				position++;
+			}
+			values = new byte[found][];
+			Future<?> ahead = prefetch ? prefetch(found, valueOffsets, valueSizes) : null;
+			try {
+				readValues(found, valueOffsets, valueSizes, values);
+			} finally {
+				if (ahead != null) ahead.cancel(false);
+			}
+		} finally {
+			epoch.exit(slot);
+		}
+		byte[][] result = new byte[count][];
+		for (int i = 0; i < found; i++) {
+			result[positions[i]] = values[i];
+		}
+		return Arrays.asList(result);
+	}
+	
+	/**
+	 * read several values in place, in the order of their offsets. The views passed to the visitor share
+	 * the blocks acquired for the previous values, each block is acquired once.
+	 * @param visitor: called for the keys in the map only, in the order of the values in the data file
+	 * @param prefetch: see {@link #getAll(Collection, boolean)}
+	 */
+	public void getAll(Collection<byte[]> keys, boolean prefetch, EntryVisitor visitor) throws IOException {
+		int slot = epoch.enter();
+		try {
+			visitAll(keys, prefetch, visitor);
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	private void visitAll(Collection<byte[]> keys, boolean prefetch, EntryVisitor visitor) throws IOException {
+		int count = keys.size();
+		byte[][] found = new byte[count][];
+		long[] valueOffsets = new long[count];
+		long[] valueSizes = new long[count];
+		long[] entry = lookups.get();
+		int size = 0;
+		for (byte[] key : keys) {
+			if (entries.lookup(key, entry)) {
+				found[size] = key;
+				valueOffsets[size] = entry[0];
+				valueSizes[size++] = entry[1];
+			}
+		}
+		Future<?> ahead = prefetch ? prefetch(size, valueOffsets, valueSizes) : null;
+		//our own reference on the last block acquired, each view takes one more on its blocks
+		VanillaMappedBytes block = null;
+		long blockindex = -1;
+		try {
+			for (int i : byOffset(size, valueOffsets)) {
+				long first = valueOffsets[i] / blockSize;
+				long last = valueSizes[i] == 0 ? first : (valueOffsets[i] + valueSizes[i] - 1) / blockSize;
+				VanillaMappedBytes[] blocks = new VanillaMappedBytes[(int)(last - first + 1)];
+				int held = 0;
+				try {
+					for (; held < blocks.length; held++) {
+						if (first + held != blockindex) {
+							if (block != null) block.release();
+							block = null;
+							blockindex = first + held;
+							block = acquire(blockindex);
+						}
+						block.reserve();
+						blocks[held] = block;
+					}
+				} catch (IOException | RuntimeException e) {
+					for (int j = 0; j < held; j++) {
+						blocks[j].release();
+					}
+					throw e;
+				}
+				try (BeniValue value = new BeniValue(blocks, (int)(valueOffsets[i] % blockSize), valueSizes[i], null, -1)) {
+					visitor.visit(found[i], value);
+				}
+			}
+		} finally {
+			if (block != null) block.release();
+			if (ahead != null) ahead.cancel(false);
+		}
+	}
+	
+	/**
+	 * read the pages of the values ahead of the reader, one byte per page, in the order of their offsets.
+	 * The reads go through the channel so they fill the page cache without remapping the cached blocks.
+	 * @return the task, to cancel once the values are read, without interrupting it: an interrupted read
+	 * would close the channel
+	 */
+	private Future<?> prefetch(int count, long[] valueOffsets, long[] valueSizes) {
+		if (count < 2) return null;
+		long[] offsets = Arrays.copyOf(valueOffsets, count);
+		long[] sizes = Arrays.copyOf(valueSizes, count);
+		Integer[] order = byOffset(count, offsets);
+		FutureTask<?>[] task = new FutureTask<?>[1];
+		task[0] = new FutureTask<>(() -> {
+			ByteBuffer page = ByteBuffer.allocateDirect(1);
+			long touched = -1;
+			try {
+				for (int i : order) {
+					long end = offsets[i] + sizes[i];
+					for (long offset = Math.max(offsets[i], touched + 1); offset < end; offset = (offset | PAGE_MASK) + 1) {
+						if (task[0].isCancelled()) return;
+						page.clear();
+						dataChannel.read(page, offset);
+						touched = offset | PAGE_MASK;
+					}
+				}
+			} catch (IOException e) {
+				//the reader will see it
+			}
+		}, null);
+		prefetcher().execute(task[0]);
+		return task[0];
+	}
+	
+	private synchronized ExecutorService prefetcher() {
+		if (prefetcher == null) {
+			prefetcher = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "narniaa-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return prefetcher;
+	}
+	
+	/**
+	 * stream the value to a channel, moved block by block by the file system without a buffer on heap.
+	 * @return number of bytes written to dst, -1 if the key is not in the map
+	 */
+	public long get(byte[] key, WritableByteChannel dst) throws IOException {
+		long[] entry = lookups.get();
+		int slot = epoch.enter();
+		try {
+			if (!entries.lookup(key, entry)) return -1;
+			final long valueOffset = entry[0];
+			final long valueSize = entry[1];
+			long read = 0;
+			while (read < valueSize) {
+				long transferred = dataChannel.transferTo(valueOffset + read, valueSize - read, dst);
+				if (transferred <= 0) throw new EOFException("Data file ends before " + (valueOffset + valueSize));
+				read += transferred;
+			}
+			if (metrics != null) metrics.read(read);
+			return read;
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+	
+	/**
+	 * read the value in place, without copying it out of the data blocks. The blocks it spans stay mapped,
+	 * and are not reused by the compaction, until the returned view is closed.
+	 * @param key: key use for lookup
+	 * @return a view of the value, null if the key is not in the map
+	 * @throws IOException
+	 */
+	public BeniValue view(byte[] key) throws IOException {
+		long[] entry = lookups.get();
+		int slot = epoch.enter();
+		try {
+			if (entries.lookup(key, entry)) return view(entry[0], entry[1], slot);
+		} catch (IOException | RuntimeException e) {
+			epoch.exit(slot);
+			throw e;
+		}
+		epoch.exit(slot);
+		return null;
+	}
+	
+	/**
+	 * stream the value to the visitor, one fragment per data block it spans.
+	 * @return false if the key is not in the map
+	 */
+	public boolean read(byte[] key, ValueVisitor visitor) throws IOException {
+		try (BeniValue value = view(key)) {
+			if (value == null) return false;
+			value.visit(visitor);
+			return true;
+		}
+	}
+	
+	protected BeniValue view(long valueOffset, long valueSize) throws IOException {
+		return view(valueOffset, valueSize, -1);
+	}
+	
+	/**
+	 * @param slot: epoch entered, left when the view is closed, -1 for none
+	 */
+	private BeniValue view(long valueOffset, long valueSize, int slot) throws IOException {
+		long first = valueOffset / blockSize;
+		long last = valueSize == 0 ? first : (valueOffset + valueSize - 1) / blockSize;
+		VanillaMappedBytes[] blocks = new VanillaMappedBytes[(int)(last - first + 1)];
+		try {
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = acquire(first + i);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (VanillaMappedBytes block : blocks) {
+				if (block != null) block.release();
+			}
+			throw e;
+		}
+		return new BeniValue(blocks, (int)(valueOffset % blockSize), valueSize, slot < 0 ? null : epoch, slot);
+	}
+	
+	/**
+	 * @return true if the key is in the map, found by an optimistic lookup that doesn't read the value
+	 */
+	public boolean containsKey(byte[] key) {
+		return entries.lookup(key, lookups.get());
+	}
+	
+	/**
+	 * @return number of keys in the map
+	 */
+	public long size() {
+		return entries.size();
 	}
 	
 	public int entrySize(int keySize) {
-		return keySize + 4 + 8* 2;
+		return BeniRecord.size(keySize);
+	}
+	
+	/**
+	 * receives the fragments of a value, in order.
+	 */
+	public interface ValueVisitor {
+		/**
+		 * @param fragment: bytes of the value held by one data block, only valid during the call
+		 * @param position: position of the fragment in the value
+		 */
+		void visit(Bytes fragment, long position) throws IOException;
+	}
+	
+	/**
+	 * receives the values of a multi-get, see {@link NarniaaDB#getAll(Collection, boolean, EntryVisitor)}.
+	 */
+	public interface EntryVisitor {
+		/**
+		 * @param key: one of the keys asked for
+		 * @param value: its value in place, only valid during the call
+		 */
+		void visit(byte[] key, BeniValue value) throws IOException;
+	}
+	
+	/**
+	 * A value in place in the mapped data blocks. The view holds a reference on each block it spans,
+	 * so they stay mapped until it is closed, and the epoch it was looked up in, so they are not reused.
+	 */
+	public static class BeniValue implements Closeable {
+		private final VanillaMappedBytes[] blocks;
+		private final int blockOffset;
+		private final long size;
+		private final Epoch epoch;
+		private final int slot;
+		private boolean closed;
+		
+		BeniValue(VanillaMappedBytes[] blocks, int blockOffset, long size, Epoch epoch, int slot) {
+			this.blocks = blocks;
+			this.blockOffset = blockOffset;
+			this.size = size;
+			this.epoch = epoch;
+			this.slot = slot;
+		}
+		
+		public long size() {
+			return size;
+		}
+		
+		/**
+		 * @return true if the value fits in one block, and can be read with {@link #bytes()}
+		 */
+		public boolean isContiguous() {
+			return blocks.length == 1;
+		}
+		
+		/**
+		 * @return the value as a slice of its data block
+		 * @throws IllegalStateException if the value spans several blocks, use {@link #visit(ValueVisitor)}
+		 */
+		public Bytes bytes() {
+			if (!isContiguous()) throw new IllegalStateException("Value spans " + blocks.length + " blocks");
+			return blocks[0].bytes(blockOffset, size);
+		}
+		
+		/**
+		 * @return the value as a direct ByteBuffer over its data block
+		 * @throws IllegalStateException if the value spans several blocks, use {@link #visit(ValueVisitor)}
+		 */
+		public ByteBuffer buffer() {
+			return bytes().sliceAsByteBuffer(null);
+		}
+		
+		public void visit(ValueVisitor visitor) throws IOException {
+			long position = 0;
+			int offset = blockOffset;
+			for (VanillaMappedBytes block : blocks) {
+				long length = Math.min(block.capacity() - offset, size - position);
+				visitor.visit(block.bytes(offset, length), position);
+				position += length;
+				offset = 0;
+			}
+		}
+		
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			for (VanillaMappedBytes block : blocks) {
+				block.release();
+			}
+			if (epoch != null) epoch.exit(slot);
+		}
 	}
 	
 	
@@ -203,47 +1688,6 @@ public class NarniaaDB implements Closeable {
 		
 	}
 	
-	public static class BeniKey {
-		private final byte[] key;
-
-		public BeniKey(byte[] key) {
-			super();
-			this.key = key;
-		}
-
-		public byte[] getKey() {
-			return key;
-		}
-
-		@Override
-		public int hashCode() {
-			int result = 1;
-			for (byte element : key)
-	            result = 1021 * result + element;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj)
-				return true;
-			if (obj == null)
-				return false;
-			if (getClass() != obj.getClass())
-				return false;
-			BeniKey other = (BeniKey) obj;
-			if (!Arrays.equals(key, other.key))
-				return false;
-			return true;
-		}
-
-		@Override
-		public String toString() {
-			return "BeniKey [key=" + Arrays.toString(key) + "]";
-		}
-		
-		
-	}
 	
 	
 }
@@ -0,0 +1,236 @@
+package org.panterose.narniaa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Bulk load of a new store, without going through {@link NarniaaDB#put(byte[], byte[])}.
+ *
+ * The pairs are cut in chunks, each chunk gets its range of the data file and of the log up front, in the
+ * order of the pairs, then the chunks are written in parallel with positional writes. The index is built
+ * by one replay of the finished log, and saved when the index is persistent. The files are written under
+ * <code>&lt;name&gt;.loading.*</code> and renamed once forced, the log last: a store interrupted during the
+ * load is empty, never partial.
+ *
+ * When a key appears several times the last pair wins, like with successive puts.
+ */
+public class NarniaaLoader {
+
+	private static final int CHUNK = 4 << 20;
+	private static final int CHUNK_PAIRS = 1 << 16;
+	private static final String LOADING = ".loading";
+	private static final String[] EXTENSIONS = { ".vdb", ".vhash", ".vidx" };
+
+	private final Path path;
+	private final NarniaaConfig config;
+	private final int threads;
+
+	/**
+	 * @param path: path of the store to create, as given to {@link NarniaaDB#NarniaaDB(Path, NarniaaConfig)}
+	 * @param threads: number of threads writing the chunks
+	 */
+	public NarniaaLoader(Path path, NarniaaConfig config, int threads) {
+		if (threads < 1) throw new IllegalArgumentException("Needs at least one thread: " + threads);
+		this.path = path;
+		this.config = config;
+		this.threads = threads;
+	}
+
+	public NarniaaDB load(Stream<? extends Map.Entry<byte[], byte[]>> pairs) throws IOException {
+		return load(pairs.iterator());
+	}
+
+	/**
+	 * write the pairs, publish the files and open the store.
+	 * @throws IllegalArgumentException if a file of the store already exists, publishing would replace it
+	 */
+	public NarniaaDB load(Iterator<? extends Map.Entry<byte[], byte[]>> pairs) throws IOException {
+		for (String extension : EXTENSIONS) {
+			File target = file(path, extension);
+			if (target.exists()) throw new IllegalArgumentException("Can't load into " + path + ", " + target + " exists");
+		}
+		Path loading = path.resolveSibling(path.getFileName() + LOADING);
+		for (String extension : EXTENSIONS) {
+			Files.deleteIfExists(file(loading, extension).toPath());
+		}
+		try {
+			write(loading, pairs);
+			//replay the log once to build the index, saved on close if it is persistent
+			new NarniaaDB(loading, new NarniaaConfig().blockSize(config.getBlockSize())
+					.persistentIndex(config.isPersistentIndex()).recoveryThreads(config.getRecoveryThreads())
+					.recoveryListener(config.getRecoveryListener())).close();
+			publish(loading);
+		} catch (IOException | RuntimeException e) {
+			for (String extension : EXTENSIONS) {
+				file(loading, extension).delete();
+			}
+			throw e;
+		}
+		return new NarniaaDB(path, config);
+	}
+
+	private void write(Path loading, Iterator<? extends Map.Entry<byte[], byte[]>> pairs) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "narniaa-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		//chunks in flight, so the pairs are not read much faster than written
+		Semaphore inflight = new Semaphore(2 * threads);
+		List<Future<?>> written = new ArrayList<>();
+		try (FileChannel data = FileChannel.open(file(loading, ".vdb").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileChannel log = FileChannel.open(file(loading, ".vidx").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			long dataOffset = 0;
+			long logOffset = 0;
+			while (pairs.hasNext()) {
+				Chunk chunk = new Chunk(dataOffset, logOffset);
+				while (pairs.hasNext() && chunk.dataSize < CHUNK && chunk.logSize < CHUNK && chunk.keys.size() < CHUNK_PAIRS) {
+					Map.Entry<byte[], byte[]> pair = pairs.next();
+					chunk.add(pair.getKey(), pair.getValue());
+				}
+				dataOffset += chunk.dataSize;
+				logOffset += chunk.logSize;
+				inflight.acquireUninterruptibly();
+				written.add(executor.submit(() -> {
+					try {
+						chunk.write(data, log);
+					} finally {
+						inflight.release();
+					}
+					return null;
+				}));
+				check(written);
+			}
+			for (Future<?> chunk : written) {
+				get(chunk);
+			}
+			data.force(true);
+			log.force(true);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * fail fast on the chunks already written
+	 */
+	private static void check(List<Future<?>> written) throws IOException {
+		Iterator<Future<?>> it = written.iterator();
+		while (it.hasNext()) {
+			Future<?> chunk = it.next();
+			if (!chunk.isDone()) continue;
+			get(chunk);
+			it.remove();
+		}
+	}
+
+	private static void get(Future<?> chunk) throws IOException {
+		try {
+			chunk.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException("Can't write a chunk", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading", e);
+		}
+	}
+
+	/**
+	 * rename the files, the log last as it is what makes the store non empty.
+	 */
+	private void publish(Path loading) throws IOException {
+		for (String extension : EXTENSIONS) {
+			File from = file(loading, extension);
+			if (!from.exists()) continue;
+			Files.move(from.toPath(), file(path, extension).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent())) {
+			directory.force(true);
+		} catch (IOException e) {
+			//directories can't be opened on every platform
+		}
+	}
+
+	private static File file(Path path, String extension) {
+		File file = path.toFile();
+		return new File(file.getParentFile(), file.getName() + extension);
+	}
+
+	/**
+	 * consecutive pairs, with their ranges of the data file and the log.
+	 */
+	private static class Chunk {
+		final long dataOffset;
+		final long logOffset;
+		final List<byte[]> keys = new ArrayList<>();
+		final List<byte[]> values = new ArrayList<>();
+		long dataSize;
+		int logSize;
+
+		Chunk(long dataOffset, long logOffset) {
+			this.dataOffset = dataOffset;
+			this.logOffset = logOffset;
+		}
+
+		void add(byte[] key, byte[] value) {
+			keys.add(key);
+			values.add(value);
+			dataSize += value.length;
+			logSize += BeniRecord.size(key.length);
+		}
+
+		void write(FileChannel data, FileChannel log) throws IOException {
+			BeniRecord record = BeniRecord.get();
+			ByteBuffer records = record.buffer(logSize);
+			long valueOffset = dataOffset;
+			for (int i = 0; i < keys.size(); i++) {
+				record.encode(records, valueOffset, values.get(i).length, keys.get(i));
+				valueOffset += values.get(i).length;
+			}
+			records.flip();
+			write(log, records, logOffset);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(dataSize, CHUNK));
+			long position = dataOffset;
+			for (byte[] value : values) {
+				if (value.length > buffer.remaining()) {
+					buffer.flip();
+					position += write(data, buffer, position);
+					buffer.clear();
+				}
+				if (value.length > buffer.capacity()) {
+					position += write(data, ByteBuffer.wrap(value), position);
+				} else {
+					buffer.put(value);
+				}
+			}
+			buffer.flip();
+			write(data, buffer, position);
+		}
+
+		private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+			long written = 0;
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer, position + written);
+			}
+			return written;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.openhft.lang.io.VanillaMappedBlocks;
+import net.openhft.lang.io.VanillaMappedBytes;
+
+/**
+ * A store for <code>long</code> keys: values are kept in the data blocks as with {@link NarniaaDB}, the index
+ * is a {@link LongIndex} holding the keys themselves, so lookups neither allocate nor read the log.
+ *
+ * The log <code>.lidx</code> holds records of a fixed width of 32 bytes, in native order: valueOffset (8),
+ * valueSize (8), key (8), crc (4), commit (4). The key has no size, the crc and commit marker are those of
+ * {@link BeniRecord}. Replay checks each record and simply skips the invalid ones, the next record is always
+ * 32 bytes further. The values are in <code>.ldb</code>, so a {@link NarniaaDB} can share the path.
+ *
+ * Compaction, the hash file and the sorted index of {@link NarniaaDB} are not available.
+ */
+public class NarniaaLongDB implements Closeable {
+
+	static final int KEY_POSITION = 16;
+	static final int CRC_POSITION = KEY_POSITION + 8;
+	static final int RECORD = CRC_POSITION + BeniRecord.TRAILER;
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	protected final VanillaMappedBlocks dataBlocks;
+	protected final FileChannel indexChannel;
+	protected final FileChannel dataChannel;
+	protected final int blockSize;
+	protected final Durability durability;
+
+	protected final AtomicLong indexMaxOffset = new AtomicLong(0);
+	protected final AtomicLong valueMaxOffset = new AtomicLong(0);
+	protected final LongIndex entries = new LongIndex();
+
+	private final ThreadLocal<long[]> lookups = ThreadLocal.withInitial(() -> new long[2]);
+	private PeriodicSync syncer;
+
+	public NarniaaLongDB(Path path, NarniaaConfig config) {
+		this.blockSize = config.getBlockSize();
+		this.durability = config.getDurability();
+		try {
+			File parent = path.toFile().getParentFile();
+			String name = path.toFile().getName();
+			File idxFile = new File(parent, name + ".lidx");
+			//not .vdb, a NarniaaDB on the same path would write over the values
+			File dataFile = new File(parent, name + ".ldb");
+			if (!idxFile.exists()) idxFile.createNewFile();
+			if (!dataFile.exists()) dataFile.createNewFile();
+			if (config.isDeleteOnExit()) {
+				idxFile.deleteOnExit();
+				dataFile.deleteOnExit();
+			}
+			this.indexChannel = new RandomAccessFile(idxFile, "rw").getChannel();
+			this.dataBlocks = VanillaMappedBlocks.readWrite(dataFile, blockSize);
+			this.dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
+			replay();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't create this DB:" + path, e);
+		}
+		if (durability == Durability.PERIODIC) {
+			syncer = new PeriodicSync(this::sync, config.getSyncInterval());
+		}
+	}
+
+	/**
+	 * rebuild the index from the log, read sequentially by large chunks. The log is truncated after the last
+	 * valid record.
+	 */
+	protected void replay() throws IOException {
+		entries.clear();
+		long size = indexChannel.size();
+		ByteBuffer chunk = ByteBuffer.allocateDirect(RECORD << 15).order(ByteOrder.nativeOrder());
+		BeniRecord record = BeniRecord.get();
+		long offset = 0;
+		long end = 0;
+		while (offset + RECORD <= size) {
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), (size - offset) / RECORD * RECORD));
+			while (chunk.hasRemaining()) {
+				if (indexChannel.read(chunk, offset + chunk.position()) < 0) throw new EOFException();
+			}
+			for (int position = 0; position < chunk.limit(); position += RECORD, offset += RECORD) {
+				if (!record.sealed(chunk, position, CRC_POSITION)) continue;
+				long valueOffset = chunk.getLong(position);
+				long valueSize = chunk.getLong(position + BeniRecord.VALUE_SIZE_POSITION);
+				long key = chunk.getLong(position + KEY_POSITION);
+				if (valueSize == BeniRecord.TOMBSTONE) {
+					entries.remove(key);
+				} else {
+					entries.put(key, valueOffset, valueSize);
+					if (valueOffset + valueSize > valueMaxOffset.get()) valueMaxOffset.set(valueOffset + valueSize);
+				}
+				end = offset + RECORD;
+			}
+		}
+		if (end < size) {
+			indexChannel.truncate(end);
+			indexChannel.force(true);
+		}
+		indexMaxOffset.set(end);
+	}
+
+	public boolean put(long key, byte[] value) throws IOException {
+		Objects.requireNonNull(value);
+		final int valueSize = value.length;
+		final long valueOffset = valueMaxOffset.getAndAdd(valueSize);
+		long offset = valueOffset;
+		int written = 0;
+		while (written < valueSize) {
+			VanillaMappedBytes bytes = dataBlocks.acquire(offset / blockSize);
+			try {
+				int blockOffset = (int) (offset % blockSize);
+				int towrite = Math.min(blockSize - blockOffset, valueSize - written);
+				bytes.write(blockOffset, value, written, towrite);
+				written += towrite;
+				offset += towrite;
+			} finally {
+				bytes.release();
+			}
+		}
+		//the value is on disk before its record can be
+		if (durability == Durability.SYNC) dataChannel.force(false);
+		boolean existed = entries.put(key, valueOffset, valueSize, () -> append(key, valueOffset, valueSize), null);
+		//forced once the segment is released
+		if (durability == Durability.SYNC) indexChannel.force(false);
+		return existed;
+	}
+
+	/**
+	 * @return the value of the key, null if the key is not in the map
+	 */
+	public byte[] get(long key) throws IOException {
+		long[] entry = lookups.get();
+		if (!entries.lookup(key, entry)) return null;
+		if (entry[1] > MAX_ARRAY) throw new IllegalStateException("Value of " + entry[1] + " bytes");
+		final int valueSize = (int) entry[1];
+		byte[] bytes = new byte[valueSize];
+		long offset = entry[0];
+		int read = 0;
+		while (read < valueSize) {
+			VanillaMappedBytes mbytes = dataBlocks.acquire(offset / blockSize);
+			try {
+				int blockOffset = (int) (offset % blockSize);
+				int toread = Math.min(blockSize - blockOffset, valueSize - read);
+				mbytes.readFully(blockOffset, bytes, read, toread);
+				read += toread;
+				offset += toread;
+			} finally {
+				mbytes.release();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * copy the value into the buffer, from its position, without allocating.
+	 * @return the size of the value, -1 if the key is not in the map
+	 * @throws BufferOverflowException if the value doesn't fit, nothing is copied then
+	 */
+	public long get(long key, ByteBuffer into) throws IOException {
+		long[] entry = lookups.get();
+		if (!entries.lookup(key, entry)) return -1;
+		if (entry[1] > into.remaining()) throw new BufferOverflowException();
+		int limit = into.limit();
+		into.limit(into.position() + (int) entry[1]);
+		try {
+			long read = 0;
+			while (into.hasRemaining()) {
+				int n = dataChannel.read(into, entry[0] + read);
+				if (n < 0) throw new EOFException("Data file ends before " + (entry[0] + entry[1]));
+				read += n;
+			}
+		} finally {
+			into.limit(limit);
+		}
+		return entry[1];
+	}
+
+	/**
+	 * @return true if the key was in the map
+	 */
+	public boolean remove(long key) throws IOException {
+		boolean removed = entries.remove(key, () -> append(key, 0, BeniRecord.TOMBSTONE), null);
+		if (removed && durability == Durability.SYNC) indexChannel.force(false);
+		return removed;
+	}
+
+	public boolean containsKey(long key) {
+		return entries.lookup(key, lookups.get());
+	}
+
+	public long size() {
+		return entries.size();
+	}
+
+	/**
+	 * write the record of a change, called with the segment of the key locked.
+	 */
+	private long append(long key, long valueOffset, long valueSize) throws IOException {
+		BeniRecord record = BeniRecord.get();
+		ByteBuffer buffer = record.buffer(RECORD);
+		buffer.putLong(0, valueOffset).putLong(BeniRecord.VALUE_SIZE_POSITION, valueSize).putLong(KEY_POSITION, key);
+		record.seal(buffer, 0, CRC_POSITION);
+		buffer.limit(RECORD);
+		long offset = indexMaxOffset.getAndAdd(RECORD);
+		while (buffer.hasRemaining()) {
+			indexChannel.write(buffer, offset + buffer.position());
+		}
+		return offset;
+	}
+
+	/**
+	 * force the values then the records written so far to disk.
+	 */
+	public void sync() throws IOException {
+		dataChannel.force(false);
+		indexChannel.force(false);
+	}
+
+	@Override
+	public void close() {
+		if (syncer != null) syncer.close();
+		try {
+			if (durability != Durability.NONE) sync();
+			dataBlocks.close();
+			indexChannel.close();
+			dataChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package org.panterose.narniaa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.panterose.narniaa.NarniaaDB.BeniValue;
+
+/**
+ * Typed view of a {@link NarniaaDB}, keys and values are converted by codecs.
+ *
+ * Values are encoded in the codec's buffer and written from it to the data file, without an intermediate
+ * array. They are decoded straight from the mapped data block when they fit in one block, from a per-thread
+ * buffer otherwise. With {@link #get(Object, Object)} the codec can decode into an existing object.
+ *
+ * An optional {@link ValueCache} keeps the decoded values of the hot keys. Values returned from the cache are
+ * shared between callers and must not be modified, the object to reuse is then ignored. The cache is only
+ * kept up to date by the writes made through the map.
+ *
+ * The map doesn't own the store, closing it is left to the caller.
+ */
+public class NarniaaMap<K, V> {
+
+	//bigger buffers are not kept by the thread
+	private static final int MAX_SCRATCH = 1 << 20;
+
+	protected final NarniaaDB db;
+	protected final Codec<K> keys;
+	protected final Codec<V> values;
+	protected final ValueCache<V> cache;
+
+	private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	public NarniaaMap(NarniaaDB db, Codec<K> keys, Codec<V> values) {
+		this(db, keys, values, 0);
+	}
+
+	/**
+	 * @param cacheBytes: bound of the cache of decoded values, 0 for no cache
+	 */
+	public NarniaaMap(NarniaaDB db, Codec<K> keys, Codec<V> values, long cacheBytes) {
+		this.db = db;
+		this.keys = keys;
+		this.values = values;
+		this.cache = cacheBytes > 0 ? new ValueCache<>(cacheBytes) : null;
+	}
+
+	/**
+	 * @return true if the key was already in the map
+	 */
+	public boolean put(K key, V value) throws IOException {
+		byte[] bytes = key(key);
+		boolean replaced = db.put(bytes, values.encode(value));
+		//after the write, so a load that read the old value can't cache it
+		if (cache != null) cache.invalidate(ByteBuffer.wrap(bytes));
+		return replaced;
+	}
+
+	/**
+	 * @return the value of this key, null if the key is not in the map
+	 */
+	public V get(K key) throws IOException {
+		return get(key, null);
+	}
+
+	/**
+	 * @param reuse: object the value is decoded into if the codec supports it
+	 * @return the value of this key, null if the key is not in the map
+	 */
+	public V get(K key, V reuse) throws IOException {
+		byte[] bytes = key(key);
+		if (cache == null) return load(bytes, reuse, null);
+		
+		ByteBuffer cached = ByteBuffer.wrap(bytes);
+		V value = cache.get(cached);
+		if (value != null) return value;
+		long stamp = cache.stamp(cached);
+		long[] size = new long[1];
+		value = load(bytes, null, size);
+		if (value != null) cache.put(cached, value, size[0], stamp);
+		return value;
+	}
+
+	/**
+	 * @param encodedSize: if not null, receives the encoded size of the value
+	 */
+	private V load(byte[] key, V reuse, long[] encodedSize) throws IOException {
+		try (BeniValue value = db.view(key)) {
+			if (value == null) return null;
+			if (encodedSize != null) encodedSize[0] = value.size();
+			if (value.isContiguous()) {
+				return values.decode(value.buffer(), reuse);
+			}
+			if (value.size() > Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("Value of " + value.size() + " bytes can't be decoded");
+			}
+			int size = (int) value.size();
+			byte[] bytes = scratch.get();
+			if (bytes.length < size) {
+				bytes = new byte[size];
+				if (size <= MAX_SCRATCH) scratch.set(bytes);
+			}
+			byte[] into = bytes;
+			value.visit((fragment, position) -> fragment.read(into, (int) position, (int) fragment.remaining()));
+			return values.decode(ByteBuffer.wrap(into, 0, size), reuse);
+		}
+	}
+
+	/**
+	 * @return true if the key was in the map
+	 */
+	public boolean remove(K key) throws IOException {
+		byte[] bytes = key(key);
+		boolean removed = db.remove(bytes);
+		if (cache != null) cache.invalidate(ByteBuffer.wrap(bytes));
+		return removed;
+	}
+
+	/**
+	 * @return the cache of decoded values, with its statistics, null if the map has none
+	 */
+	public ValueCache<V> cache() {
+		return cache;
+	}
+
+	public NarniaaDB db() {
+		return db;
+	}
+
+	private byte[] key(K key) {
+		ByteBuffer buffer = keys.encode(key);
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,279 @@
+package org.panterose.narniaa;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a {@link NarniaaDB}, kept when {@link NarniaaConfig#metrics(boolean)} is set: latencies of
+ * <code>put</code> and <code>get</code>, data blocks acquired, values written across blocks, values rewritten in
+ * place, bytes moved, blocks prepared and read ahead by the {@link BlockAllocator}, and the sizes of the store
+ * read on demand.
+ *
+ * Read them with {@link NarniaaDB#metrics()} or over JMX, as
+ * <code>org.panterose.narniaa:type=NarniaaDB,name=&lt;path&gt;</code>.
+ */
+public class NarniaaMetrics implements NarniaaMetricsMBean {
+
+	private final NarniaaDB db;
+	private final LatencyHistogram puts = new LatencyHistogram();
+	private final LatencyHistogram gets = new LatencyHistogram();
+	private final LongAdder blockAcquires = new LongAdder();
+	private final LongAdder crossBlockValues = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder blocksPreallocated = new LongAdder();
+	private final LongAdder preallocatedAcquires = new LongAdder();
+	private final LongAdder blocksReadAhead = new LongAdder();
+	private final LongAdder updatesInPlace = new LongAdder();
+	private volatile long openNanos;
+	private ObjectName name;
+
+	NarniaaMetrics(NarniaaDB db) {
+		this.db = db;
+	}
+
+	void put(long nanos, long bytes) {
+		puts.record(nanos);
+		bytesWritten.add(bytes);
+	}
+
+	void get(long nanos, long bytes) {
+		gets.record(nanos);
+		bytesRead.add(bytes);
+	}
+
+	void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	void read(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void blockAcquired() {
+		blockAcquires.increment();
+	}
+
+	void crossBlock() {
+		crossBlockValues.increment();
+	}
+
+	void preallocated() {
+		blocksPreallocated.increment();
+	}
+
+	void preallocatedAcquired() {
+		preallocatedAcquires.increment();
+	}
+
+	void readAhead() {
+		blocksReadAhead.increment();
+	}
+
+	void updatedInPlace() {
+		updatesInPlace.increment();
+	}
+
+	void opened(long nanos) {
+		openNanos = nanos;
+	}
+
+	/**
+	 * register the bean with the platform server, a store opened twice is only registered once.
+	 */
+	void register(String path) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("org.panterose.narniaa:type=NarniaaDB,name=" + ObjectName.quote(path));
+			if (server.isRegistered(name)) return;
+			server.registerMBean(this, name);
+			this.name = name;
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void unregister() {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		name = null;
+	}
+
+	public LatencyHistogram puts() {
+		return puts;
+	}
+
+	public LatencyHistogram gets() {
+		return gets;
+	}
+
+	@Override
+	public long getPutCount() {
+		return puts.count();
+	}
+
+	@Override
+	public double getPutMean() {
+		return puts.mean();
+	}
+
+	@Override
+	public long getPut50() {
+		return puts.percentile(50);
+	}
+
+	@Override
+	public long getPut99() {
+		return puts.percentile(99);
+	}
+
+	@Override
+	public long getPut999() {
+		return puts.percentile(99.9);
+	}
+
+	@Override
+	public long getPutMax() {
+		return puts.max();
+	}
+
+	@Override
+	public long getGetCount() {
+		return gets.count();
+	}
+
+	@Override
+	public double getGetMean() {
+		return gets.mean();
+	}
+
+	@Override
+	public long getGet50() {
+		return gets.percentile(50);
+	}
+
+	@Override
+	public long getGet99() {
+		return gets.percentile(99);
+	}
+
+	@Override
+	public long getGet999() {
+		return gets.percentile(99.9);
+	}
+
+	@Override
+	public long getGetMax() {
+		return gets.max();
+	}
+
+	@Override
+	public long getOpenNanos() {
+		return openNanos;
+	}
+
+	@Override
+	public long getBlockAcquires() {
+		return blockAcquires.sum();
+	}
+
+	@Override
+	public long getCrossBlockValues() {
+		return crossBlockValues.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBlocksPreallocated() {
+		return blocksPreallocated.sum();
+	}
+
+	@Override
+	public long getPreallocatedAcquires() {
+		return preallocatedAcquires.sum();
+	}
+
+	@Override
+	public long getBlocksReadAhead() {
+		return blocksReadAhead.sum();
+	}
+
+	@Override
+	public long getUpdatesInPlace() {
+		return updatesInPlace.sum();
+	}
+
+	@Override
+	public long getKeys() {
+		return db.size();
+	}
+
+	@Override
+	public long getIndexBytes() {
+		return db.indexMaxOffset.get();
+	}
+
+	@Override
+	public long getDataBytes() {
+		return db.valueMaxOffset.get();
+	}
+
+	@Override
+	public long getLiveBytes() {
+		return db.blockStats.liveBytes();
+	}
+
+	@Override
+	public long getDeadBytes() {
+		return db.blockStats.deadBytes();
+	}
+
+	@Override
+	public long getReclaimedBytes() {
+		return db.blockStats.reclaimedBytes();
+	}
+
+	/**
+	 * clear the latencies and the counters, not the open time.
+	 */
+	@Override
+	public void reset() {
+		puts.reset();
+		gets.reset();
+		blockAcquires.reset();
+		crossBlockValues.reset();
+		bytesWritten.reset();
+		bytesRead.reset();
+		blocksPreallocated.reset();
+		preallocatedAcquires.reset();
+		blocksReadAhead.reset();
+		updatesInPlace.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "NarniaaMetrics [puts=" + puts + ", gets=" + gets + ", openNanos=" + openNanos + ", blockAcquires="
+				+ getBlockAcquires() + ", crossBlockValues=" + getCrossBlockValues() + ", bytesWritten=" + getBytesWritten()
+				+ ", bytesRead=" + getBytesRead() + ", blocksPreallocated=" + getBlocksPreallocated() + ", preallocatedAcquires="
+				+ getPreallocatedAcquires() + ", blocksReadAhead=" + getBlocksReadAhead() + ", updatesInPlace=" + getUpdatesInPlace()
+				+ ", keys=" + getKeys() + ", liveBytes=" + getLiveBytes() + ", deadBytes="
+				+ getDeadBytes() + "]";
+	}
+}
@@ -0,0 +1,40 @@
+package org.panterose.narniaa;
+
+/**
+ * JMX view of the {@link NarniaaMetrics} of a store, durations are in ns.
+ */
+public interface NarniaaMetricsMBean {
+
+	long getPutCount();
+	double getPutMean();
+	long getPut50();
+	long getPut99();
+	long getPut999();
+	long getPutMax();
+
+	long getGetCount();
+	double getGetMean();
+	long getGet50();
+	long getGet99();
+	long getGet999();
+	long getGetMax();
+
+	long getOpenNanos();
+	long getBlockAcquires();
+	long getCrossBlockValues();
+	long getBytesWritten();
+	long getBytesRead();
+	long getBlocksPreallocated();
+	long getPreallocatedAcquires();
+	long getBlocksReadAhead();
+	long getUpdatesInPlace();
+
+	long getKeys();
+	long getIndexBytes();
+	long getDataBytes();
+	long getLiveBytes();
+	long getDeadBytes();
+	long getReclaimedBytes();
+
+	void reset();
+}
@@ -0,0 +1,220 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Point in time view of a {@link NarniaaDB}, see {@link NarniaaDB#snapshot()}.
+ *
+ * Values are never overwritten, the versions a snapshot sees stay in the data file: the snapshot only
+ * freezes the end of the log. An entry whose record is before that end is the version of the snapshot.
+ * The first writer replacing or removing such an entry after the snapshot was taken keeps it aside for the
+ * snapshot, so a snapshot costs nothing until the keys it saw change, then one entry per changed key.
+ *
+ * Blocks emptied by the compaction while a snapshot is open are only reclaimed once it is closed.
+ */
+public class NarniaaSnapshot implements Closeable {
+
+	private final NarniaaDB db;
+	private final long logEnd;
+	private final long valueEnd;
+	//epoch entered for as long as the snapshot is open
+	private final int slot;
+
+	//versions of the keys changed since the snapshot: valueOffset, valueSize and the number of the change
+	private final ConcurrentSkipListMap<byte[], long[]> replaced = new ConcurrentSkipListMap<>(BeniSortedIndex.UNSIGNED);
+	private final AtomicLong changes = new AtomicLong();
+	private volatile boolean closed;
+
+	NarniaaSnapshot(NarniaaDB db, long logEnd, long valueEnd, int slot) {
+		this.db = db;
+		this.logEnd = logEnd;
+		this.valueEnd = valueEnd;
+		this.slot = slot;
+	}
+
+	/**
+	 * @return end of the log when the snapshot was taken, the snapshot sees the records before it
+	 */
+	public long logEnd() {
+		return logEnd;
+	}
+
+	/**
+	 * @return end of the data file when the snapshot was taken
+	 */
+	public long valueEnd() {
+		return valueEnd;
+	}
+
+	int slot() {
+		return slot;
+	}
+
+	/**
+	 * called by the writers under the segment lock of the key, before the change is visible.
+	 */
+	void changed(byte[] key, long keyOffset, long valueOffset, long valueSize, long changeOffset) {
+		if (keyOffset >= logEnd || changeOffset < logEnd) return;
+		byte[] copy = key == null ? db.indexView.key(keyOffset) : key.clone();
+		replaced.putIfAbsent(copy, new long[] { valueOffset, valueSize, changes.incrementAndGet() });
+	}
+
+	/**
+	 * @param into: filled with valueOffset and valueSize of the version of the snapshot
+	 * @return false if the key was not in the store when the snapshot was taken
+	 */
+	boolean lookup(byte[] key, long[] into) {
+		check();
+		//the version is kept aside before the entry changes, so it is there if the entry is a later one
+		if (db.entries.lookup(key, into) && into[2] < logEnd) return true;
+		long[] version = replaced.get(key);
+		if (version == null) return false;
+		into[0] = version[0];
+		into[1] = version[1];
+		into[2] = -1;
+		return true;
+	}
+
+	/**
+	 * @return the value of the key when the snapshot was taken, null if the key was not in the store
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		long[] entry = new long[3];
+		if (!lookup(key, entry)) return null;
+		byte[][] value = new byte[1][];
+		db.readValues(1, entry, new long[] { entry[1] }, value);
+		return value[0];
+	}
+
+	/**
+	 * @return the pairs of this range when the snapshot was taken, in key order
+	 * @throws IllegalStateException if the store has no sorted index
+	 * @see NarniaaDB#scan(byte[], byte[])
+	 */
+	public BeniScan scan(byte[] from, byte[] to) {
+		check();
+		Iterator<byte[]> current = db.sorted().range(from, to).iterator();
+		Iterator<byte[]> removed = range(from, to).keySet().iterator();
+		return new BeniScan(db, new Merge(current, removed), this::lookup);
+	}
+
+	public BeniScan prefixScan(byte[] prefix) {
+		return scan(prefix, BeniSortedIndex.successor(prefix));
+	}
+
+	private NavigableMap<byte[], long[]> range(byte[] from, byte[] to) {
+		if (from == null && to == null) return replaced;
+		if (from == null) return replaced.headMap(to, false);
+		if (to == null) return replaced.tailMap(from, true);
+		if (BeniSortedIndex.compare(from, to) >= 0) return replaced.subMap(from, true, from, false);
+		return replaced.subMap(from, true, to, false);
+	}
+
+	/**
+	 * visit all the pairs of the snapshot, in no particular order. The entries are taken one segment of the
+	 * index at a time, the values are read out of the locks.
+	 */
+	public void forEach(PairVisitor visitor) throws IOException {
+		check();
+		BeniIndex entries = db.entries;
+		long[] scanned = new long[entries.segments()];
+		long[][] found = { new long[3 * 64] };
+		int[] size = { 0 };
+		for (int segment = 0; segment < scanned.length; segment++) {
+			int s = segment;
+			size[0] = 0;
+			entries.forEach(segment, (hash, keyOffset, valueOffset, valueSize) -> {
+				if (keyOffset >= logEnd) return;
+				if (size[0] + 3 > found[0].length) found[0] = Arrays.copyOf(found[0], found[0].length * 2);
+				found[0][size[0]++] = keyOffset;
+				found[0][size[0]++] = valueOffset;
+				found[0][size[0]++] = valueSize;
+			}, () -> scanned[s] = changes.get());
+			long[] f = found[0];
+			for (int i = 0; i < size[0]; i += 3 * BeniScan.BATCH) {
+				int count = Math.min(BeniScan.BATCH, (size[0] - i) / 3);
+				long[] valueOffsets = new long[count];
+				long[] valueSizes = new long[count];
+				for (int j = 0; j < count; j++) {
+					valueOffsets[j] = f[i + 3 * j + 1];
+					valueSizes[j] = f[i + 3 * j + 2];
+				}
+				byte[][] values = new byte[count][];
+				db.readValues(count, valueOffsets, valueSizes, values);
+				for (int j = 0; j < count; j++) {
+					visitor.visit(db.indexView.key(f[i + 3 * j]), values[j]);
+				}
+			}
+		}
+		//the versions kept aside before their segment was scanned, the later ones were seen in the segment
+		byte[][] value = new byte[1][];
+		for (Map.Entry<byte[], long[]> version : replaced.entrySet()) {
+			long[] v = version.getValue();
+			if (v[2] > scanned[BeniIndex.segmentOf(BeniIndex.hash(version.getKey()))]) continue;
+			db.readValues(1, v, new long[] { v[1] }, value);
+			visitor.visit(version.getKey().clone(), value[0]);
+		}
+	}
+
+	private void check() {
+		if (closed) throw new IllegalStateException("Snapshot closed");
+	}
+
+	/**
+	 * release the versions kept for this snapshot.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		db.release(this);
+		replaced.clear();
+	}
+
+	/**
+	 * receives the pairs of a snapshot.
+	 */
+	public interface PairVisitor {
+		void visit(byte[] key, byte[] value) throws IOException;
+	}
+
+	/**
+	 * union of two sorted iterators of keys.
+	 */
+	private static class Merge implements Iterator<byte[]> {
+		private final Iterator<byte[]> a;
+		private final Iterator<byte[]> b;
+		private byte[] nextA;
+		private byte[] nextB;
+
+		Merge(Iterator<byte[]> a, Iterator<byte[]> b) {
+			this.a = a;
+			this.b = b;
+			this.nextA = a.hasNext() ? a.next() : null;
+			this.nextB = b.hasNext() ? b.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextA != null || nextB != null;
+		}
+
+		@Override
+		public byte[] next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			int c = nextA == null ? 1 : nextB == null ? -1 : BeniSortedIndex.compare(nextA, nextB);
+			byte[] next = c <= 0 ? nextA : nextB;
+			if (c <= 0) nextA = a.hasNext() ? a.next() : null;
+			if (c >= 0) nextB = b.hasNext() ? b.next() : null;
+			return next;
+		}
+	}
+}
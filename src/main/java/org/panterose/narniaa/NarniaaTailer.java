@@ -0,0 +1,198 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the changes of a store in the order of its <code>.vidx</code> log, from another thread or another
+ * process mapping the same files.
+ *
+ * The tailer waits at its position until the record there is complete, as writers append their records in
+ * parallel, and skips the padding left by a replay. A named tailer keeps its position in
+ * <code>&lt;name&gt;.&lt;cursor&gt;.vcur</code>, saved by {@link #commit()}, and resumes from it. The positions
+ * don't survive {@link NarniaaDB#compactLog()}: a tailer opened before keeps reading the replaced log.
+ *
+ * The values are read from the data file when asked for. A value read long after its record may already
+ * have been moved by the compaction and its block filled again with other values: the move is a later record
+ * of the key, with the same value, so a follower applying all the records ends up with the right value.
+ */
+public class NarniaaTailer implements Closeable {
+
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	private static final long MAX_PAUSE = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final IndexView log;
+	private final FileChannel data;
+	private final FileChannel cursor;
+	private long position;
+
+	/**
+	 * tail the store from the start of its log, without saving the position.
+	 */
+	public NarniaaTailer(Path path) {
+		this(path, null);
+	}
+
+	/**
+	 * @param cursor: name of the saved position, null to start from the start of the log without saving it
+	 */
+	public NarniaaTailer(Path path, String cursor) {
+		File parent = path.toFile().getParentFile();
+		String name = path.toFile().getName();
+		try {
+			this.log = new IndexView(new File(parent, name + ".vidx"));
+			this.data = FileChannel.open(new File(parent, name + ".vdb").toPath(), StandardOpenOption.READ);
+			if (cursor == null) {
+				this.cursor = null;
+			} else {
+				this.cursor = FileChannel.open(new File(parent, name + "." + cursor + ".vcur").toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				ByteBuffer saved = ByteBuffer.allocate(8);
+				while (saved.hasRemaining()) {
+					if (this.cursor.read(saved, saved.position()) <= 0) break;
+				}
+				if (!saved.hasRemaining()) position = saved.getLong(0);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Can't tail this DB:" + path, e);
+		}
+	}
+
+	/**
+	 * @return offset in the log of the next record to read
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * @param position: offset of a record in the log, usually a position returned earlier
+	 */
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	/**
+	 * read the next change if it is complete.
+	 * @return false if there is none yet
+	 */
+	public boolean next(ChangeVisitor visitor) throws IOException {
+		BeniRecord record = BeniRecord.get();
+		while (true) {
+			if (!log.ensure(position + BeniRecord.size(0))) return false;
+			int keySize = log.readInt(position + BeniRecord.KEY_SIZE_POSITION);
+			if (keySize < 0 || !log.ensure(position + BeniRecord.size(0) + keySize)) return false;
+			int length = record.check(log, position, log.size());
+			if (length < 0) return false;
+			long valueOffset = log.readLong(position);
+			long valueSize = log.readLong(position + BeniRecord.VALUE_SIZE_POSITION);
+			position += length;
+			if (valueSize == BeniRecord.PADDING) continue;
+			byte[] key = record.checkedKey(keySize);
+			if (valueSize == BeniRecord.TOMBSTONE) {
+				visitor.removed(key);
+			} else {
+				visitor.put(key, valueOffset, valueSize);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * read the next change, waiting for it, parked for longer and longer pauses up to 1 ms.
+	 * @return false if there was none before the timeout, or if the thread was interrupted
+	 */
+	public boolean next(ChangeVisitor visitor, long timeout, TimeUnit unit) throws IOException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long pause = 1000;
+		while (!next(visitor)) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0 || Thread.currentThread().isInterrupted()) return false;
+			LockSupport.parkNanos(Math.min(pause, left));
+			pause = Math.min(pause * 2, MAX_PAUSE);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the value of a put, read from the data file
+	 * @throws IllegalStateException if the value is too big for an array
+	 */
+	public byte[] value(long valueOffset, long valueSize) throws IOException {
+		if (valueSize > MAX_ARRAY) throw new IllegalStateException("Value of " + valueSize + " bytes");
+		ByteBuffer value = ByteBuffer.allocate((int) valueSize);
+		while (value.hasRemaining()) {
+			if (data.read(value, valueOffset + value.position()) < 0) {
+				throw new EOFException("Data file ends before " + (valueOffset + valueSize));
+			}
+		}
+		return value.array();
+	}
+
+	/**
+	 * apply the available changes to a follower store, at most max of them.
+	 * @return number of changes applied
+	 */
+	public int replicate(NarniaaDB follower, int max) throws IOException {
+		ChangeVisitor apply = new ChangeVisitor() {
+			@Override
+			public void put(byte[] key, long valueOffset, long valueSize) throws IOException {
+				follower.put(key, value(valueOffset, valueSize));
+			}
+
+			@Override
+			public void removed(byte[] key) throws IOException {
+				follower.remove(key);
+			}
+		};
+		int applied = 0;
+		while (applied < max && next(apply)) {
+			applied++;
+		}
+		return applied;
+	}
+
+	/**
+	 * save the position, a tailer opened with the same cursor name resumes from it.
+	 * @throws IllegalStateException if the tailer has no cursor name
+	 */
+	public void commit() throws IOException {
+		if (cursor == null) throw new IllegalStateException("No cursor to save the position to");
+		ByteBuffer saved = ByteBuffer.allocate(8).putLong(0, position);
+		while (saved.hasRemaining()) {
+			cursor.write(saved, saved.position());
+		}
+		cursor.force(false);
+	}
+
+	@Override
+	public void close() {
+		try {
+			log.close();
+			data.close();
+			if (cursor != null) cursor.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * receives the changes read by a tailer.
+	 */
+	public interface ChangeVisitor {
+		/**
+		 * @param key: the key put, the value is read with {@link NarniaaTailer#value(long, long)}
+		 */
+		void put(byte[] key, long valueOffset, long valueSize) throws IOException;
+
+		void removed(byte[] key) throws IOException;
+	}
+}
@@ -0,0 +1,50 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forces a store to disk at a fixed interval from a daemon thread, for {@link Durability#PERIODIC}.
+ *
+ * Closing lets a sync in progress finish rather than interrupting it: an interrupt during a force closes
+ * the channel of the store.
+ */
+public class PeriodicSync implements Closeable {
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * @param interval: milliseconds between the end of a sync and the start of the next one
+	 */
+	public PeriodicSync(Syncable store, long interval) {
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "narniaa-sync");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				store.sync();
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public interface Syncable {
+		void sync() throws IOException;
+	}
+}
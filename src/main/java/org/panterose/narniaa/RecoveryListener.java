@@ -0,0 +1,23 @@
+package org.panterose.narniaa;
+
+/**
+ * Told of the progress of the replay of the <code>.vidx</code> log when a {@link NarniaaDB} is opened, see
+ * {@link NarniaaConfig#recoveryListener(RecoveryListener)}.
+ */
+public interface RecoveryListener {
+
+	/**
+	 * called now and then while the log is replayed, from the replaying threads.
+	 * @param replayed: bytes of the log replayed so far
+	 * @param size: size of the log
+	 */
+	void progress(long replayed, long size);
+
+	/**
+	 * called once the log is replayed.
+	 * @param records: number of records replayed, the superseded ones included
+	 * @param size: size of the log once replayed
+	 * @param nanos: time spent replaying
+	 */
+	void recovered(long records, long size, long nanos);
+}
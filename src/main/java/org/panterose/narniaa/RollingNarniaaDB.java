@@ -0,0 +1,305 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keys kept in rolling {@link NarniaaDB} segments, each with its own files
+ * <code>segment-&lt;start&gt;.*</code> in the directory, named after the time it was started at in ms.
+ *
+ * Writes go to the newest segment, the copy of the key in an older segment, if any, is removed so a key lives
+ * in one segment only: a put looks the key up in the index of each older segment, see
+ * {@link #put(byte[], byte[])}. A new segment is started once the current one is big or old enough, see
+ * {@link NarniaaConfig#segmentBytes(long)} and {@link NarniaaConfig#segmentInterval(long)}.
+ *
+ * The operations read the array of segments without a lock, in an {@link Epoch}: a dropped segment is closed
+ * once the operations that may still see it left.
+ *
+ * Each segment has its own index: expired segments, see {@link NarniaaConfig#retentionTime(long)} and
+ * {@link NarniaaConfig#retentionBytes(long)}, are dropped with their keys by closing them and deleting their
+ * files, without touching the others. Retention runs when a segment is started and on {@link #expire()}.
+ */
+public class RollingNarniaaDB implements Closeable {
+
+	private static final String PREFIX = "segment-";
+	private static final long QUIESCE_PAUSE = TimeUnit.MICROSECONDS.toNanos(100);
+
+	protected final Path directory;
+	protected final NarniaaConfig config;
+	//oldest first, replaced as a whole by roll and expire
+	protected volatile Segment[] segments;
+	//entered by the operations, see quiesce()
+	private final Epoch epoch = new Epoch();
+	//serialises roll, expire and close
+	private final Object rolling = new Object();
+
+	public RollingNarniaaDB(Path directory, NarniaaConfig config) {
+		this.directory = directory;
+		this.config = config;
+		List<Segment> opened = new ArrayList<>();
+		try {
+			Files.createDirectories(directory);
+			for (long start : starts(directory.toFile())) {
+				opened.add(new Segment(start, new NarniaaDB(path(start), config)));
+			}
+			if (opened.isEmpty()) {
+				long start = System.currentTimeMillis();
+				opened.add(new Segment(start, new NarniaaDB(path(start), config)));
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Segment segment : opened) {
+				segment.db.close();
+			}
+			throw new RuntimeException("Can't create this DB:" + directory, e);
+		}
+		this.segments = opened.toArray(new Segment[opened.size()]);
+		try {
+			expire();
+		} catch (IOException e) {
+			close();
+			throw new RuntimeException("Can't create this DB:" + directory, e);
+		}
+	}
+
+	private static long[] starts(File directory) {
+		File[] logs = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(".vidx"));
+		if (logs == null) return new long[0];
+		long[] starts = new long[logs.length];
+		for (int i = 0; i < logs.length; i++) {
+			String name = logs[i].getName();
+			starts[i] = Long.parseLong(name.substring(PREFIX.length(), name.length() - ".vidx".length()));
+		}
+		Arrays.sort(starts);
+		return starts;
+	}
+
+	private Path path(long start) {
+		return directory.resolve(PREFIX + start);
+	}
+
+	/**
+	 * put the value in the current segment. A new key is looked up in each older segment to remove its copy:
+	 * an optimistic lookup in their index, which doesn't read their log unless the key is there, but one per
+	 * segment.
+	 * @return true if the key was already in the map
+	 */
+	public boolean put(byte[] key, byte[] value) throws IOException {
+		boolean first = true;
+		boolean existed = false;
+		while (true) {
+			Segment current;
+			int slot = epoch.enter();
+			try {
+				Segment[] segments = this.segments;
+				current = segments[segments.length - 1];
+				boolean replaced = current.db.put(key, value);
+				//rarely there for time series
+				for (int i = segments.length - 2; i >= 0 && !replaced; i--) {
+					if (segments[i].db.containsKey(key)) replaced = segments[i].db.remove(key);
+				}
+				if (first) existed = replaced;
+				first = false;
+			} finally {
+				epoch.exit(slot);
+			}
+			Segment[] segments = this.segments;
+			//rolled during the put, a writer of the new segment may have missed this copy: put it there
+			if (segments[segments.length - 1] != current) continue;
+			if (full(current)) roll(current);
+			return existed;
+		}
+	}
+
+	/**
+	 * @return the value of the key, null if the key is not in the map
+	 */
+	public byte[] get(byte[] key) throws IOException {
+		int slot = epoch.enter();
+		try {
+			Segment[] segments = this.segments;
+			for (int i = segments.length - 1; i >= 0; i--) {
+				byte[] value = segments[i].db.get(key);
+				if (value != null) return value;
+			}
+			return null;
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+
+	/**
+	 * @return true if the key was in the map
+	 */
+	public boolean remove(byte[] key) throws IOException {
+		int slot = epoch.enter();
+		try {
+			boolean removed = false;
+			for (Segment segment : segments) {
+				removed |= segment.db.remove(key);
+			}
+			return removed;
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+
+	private boolean full(Segment current) {
+		long segmentBytes = config.getSegmentBytes();
+		long segmentInterval = config.getSegmentInterval();
+		return (segmentBytes > 0 && current.db.valueMaxOffset.get() >= segmentBytes)
+				|| (segmentInterval > 0 && System.currentTimeMillis() - current.start >= segmentInterval);
+	}
+
+	/**
+	 * start a new segment now, then drop the expired ones.
+	 */
+	public void roll() throws IOException {
+		Segment[] segments = this.segments;
+		roll(segments[segments.length - 1]);
+	}
+
+	/**
+	 * start a new segment unless another writer already did.
+	 */
+	private void roll(Segment current) throws IOException {
+		synchronized (rolling) {
+			Segment[] segments = this.segments;
+			if (segments[segments.length - 1] != current) return;
+			//the names must grow even if the clock doesn't
+			long start = Math.max(System.currentTimeMillis(), current.start + 1);
+			Segment next;
+			try {
+				next = new Segment(start, new NarniaaDB(path(start), config));
+			} catch (RuntimeException e) {
+				throw new IOException("Can't start segment " + start + " of " + directory, e);
+			}
+			Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+			rolled[segments.length] = next;
+			this.segments = rolled;
+			expire(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * drop the expired segments, never the current one.
+	 * @return number of segments dropped
+	 */
+	public int expire() throws IOException {
+		synchronized (rolling) {
+			return expire(System.currentTimeMillis());
+		}
+	}
+
+	private int expire(long now) throws IOException {
+		Segment[] segments = this.segments;
+		long retentionTime = config.getRetentionTime();
+		long retentionBytes = config.getRetentionBytes();
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.bytes();
+		}
+		int dropped = 0;
+		while (dropped < segments.length - 1) {
+			//the last write to a segment is before the start of the next one
+			boolean old = retentionTime > 0 && segments[dropped + 1].start <= now - retentionTime;
+			boolean big = retentionBytes > 0 && bytes > retentionBytes;
+			if (!old && !big) break;
+			bytes -= segments[dropped].bytes();
+			dropped++;
+		}
+		if (dropped == 0) return 0;
+		this.segments = Arrays.copyOfRange(segments, dropped, segments.length);
+		quiesce();
+		IOException failure = null;
+		for (int i = 0; i < dropped; i++) {
+			try {
+				drop(segments[i]);
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+		return dropped;
+	}
+
+	/**
+	 * wait for the operations that may have read the segments before they were replaced to leave.
+	 */
+	private void quiesce() {
+		long left = epoch.current() + 2;
+		while (epoch.advance() < left) {
+			LockSupport.parkNanos(QUIESCE_PAUSE);
+		}
+	}
+
+	private void drop(Segment segment) throws IOException {
+		segment.db.close(false);
+		String name = PREFIX + segment.start;
+		for (String extension : new String[] { ".vidx", ".vdb", ".vhash" }) {
+			Files.deleteIfExists(directory.resolve(name + extension));
+		}
+	}
+
+	public long size() {
+		int slot = epoch.enter();
+		try {
+			long size = 0;
+			for (Segment segment : segments) {
+				size += segment.db.size();
+			}
+			return size;
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+
+	/**
+	 * @return number of segments, the current one included
+	 */
+	public int segments() {
+		return segments.length;
+	}
+
+	public void sync() throws IOException {
+		int slot = epoch.enter();
+		try {
+			for (Segment segment : segments) {
+				segment.db.sync();
+			}
+		} finally {
+			epoch.exit(slot);
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (rolling) {
+			quiesce();
+			for (Segment segment : segments) {
+				segment.db.close();
+			}
+		}
+	}
+
+	protected static class Segment {
+		protected final long start;
+		protected final NarniaaDB db;
+
+		Segment(long start, NarniaaDB db) {
+			this.start = start;
+			this.db = db;
+		}
+
+		long bytes() {
+			return db.valueMaxOffset.get() + db.indexMaxOffset.get();
+		}
+	}
+}
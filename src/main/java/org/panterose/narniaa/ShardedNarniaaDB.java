@@ -0,0 +1,182 @@
+package org.panterose.narniaa;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.panterose.narniaa.NarniaaDB.BeniValue;
+import org.panterose.narniaa.NarniaaDB.ValueVisitor;
+
+/**
+ * Keys partitioned by hash over independent {@link NarniaaDB} shards, each with its own files
+ * <code>shard-&lt;i&gt;.*</code> in the directory, its own tail pointers and its own index. Writes to
+ * different shards don't contend, and the shards are opened, and replayed if needed, in parallel.
+ *
+ * The number of shards is part of the layout: a directory must always be opened with the same count.
+ */
+public class ShardedNarniaaDB implements Closeable {
+
+	protected final NarniaaDB[] shards;
+
+	public ShardedNarniaaDB(Path directory, int shards, NarniaaConfig config) {
+		if (shards < 1) throw new IllegalArgumentException("Needs at least one shard: " + shards);
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Can't create this DB:" + directory, e);
+		}
+		int existing = count(directory.toFile());
+		if (existing > 0 && existing != shards) {
+			throw new IllegalArgumentException(directory + " holds " + existing + " shards, not " + shards);
+		}
+
+		this.shards = new NarniaaDB[shards];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(shards, Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Future<NarniaaDB>> opening = new ArrayList<>();
+			for (int i = 0; i < shards; i++) {
+				Path path = directory.resolve("shard-" + i);
+				opening.add(executor.submit(() -> new NarniaaDB(path, config)));
+			}
+			RuntimeException failure = null;
+			for (int i = 0; i < shards; i++) {
+				try {
+					this.shards[i] = opening.get(i).get();
+				} catch (ExecutionException e) {
+					if (failure == null) failure = new RuntimeException("Can't open shard " + i + " of " + directory, e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					if (failure == null) failure = new RuntimeException("Interrupted while opening " + directory, e);
+				}
+			}
+			if (failure != null) {
+				close();
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static int count(File directory) {
+		File[] logs = directory.listFiles((dir, name) -> name.startsWith("shard-") && name.endsWith(".vidx"));
+		return logs == null ? 0 : logs.length;
+	}
+
+	/**
+	 * @return the shard of this key: the hash is mixed again so the keys of a shard still spread over all the
+	 * segments and slots of its index
+	 */
+	protected NarniaaDB shard(byte[] key) {
+		return shards[index(key)];
+	}
+
+	private int index(byte[] key) {
+		long mixed = ((BeniIndex.hash(key) & 0xffffffffL) * 0x9e3779b97f4a7c15L) >>> 32;
+		return (int) ((mixed * shards.length) >>> 32);
+	}
+
+	public boolean put(byte[] key, byte[] value) throws IOException {
+		return shard(key).put(key, value);
+	}
+
+	public byte[] get(byte[] key) throws IOException {
+		return shard(key).get(key);
+	}
+
+	/**
+	 * @return the values of the keys, in the order of the keys, null for the keys not in the map
+	 * @see NarniaaDB#getAll(Collection, boolean)
+	 */
+	public List<byte[]> getAll(Collection<byte[]> keys, boolean prefetch) throws IOException {
+		List<List<byte[]>> keysByShard = new ArrayList<>(shards.length);
+		List<List<Integer>> positions = new ArrayList<>(shards.length);
+		for (int i = 0; i < shards.length; i++) {
+			keysByShard.add(new ArrayList<>());
+			positions.add(new ArrayList<>());
+		}
+		int position = 0;
+		for (byte[] key : keys) {
+			int shard = index(key);
+			keysByShard.get(shard).add(key);
+			positions.get(shard).add(position++);
+		}
+		byte[][] result = new byte[position][];
+		for (int i = 0; i < shards.length; i++) {
+			if (keysByShard.get(i).isEmpty()) continue;
+			List<byte[]> values = shards[i].getAll(keysByShard.get(i), prefetch);
+			for (int j = 0; j < values.size(); j++) {
+				result[positions.get(i).get(j)] = values.get(j);
+			}
+		}
+		return Arrays.asList(result);
+	}
+
+	public boolean put(byte[] key, ReadableByteChannel src, long size) throws IOException {
+		return shard(key).put(key, src, size);
+	}
+
+	public long get(byte[] key, WritableByteChannel dst) throws IOException {
+		return shard(key).get(key, dst);
+	}
+
+	public boolean remove(byte[] key) throws IOException {
+		return shard(key).remove(key);
+	}
+
+	public BeniValue view(byte[] key) throws IOException {
+		return shard(key).view(key);
+	}
+
+	public boolean read(byte[] key, ValueVisitor visitor) throws IOException {
+		return shard(key).read(key, visitor);
+	}
+
+	public long size() {
+		long size = 0;
+		for (NarniaaDB shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	public void sync() throws IOException {
+		for (NarniaaDB shard : shards) {
+			shard.sync();
+		}
+	}
+
+	/**
+	 * @return number of blocks compacted over all the shards
+	 */
+	public int compact() throws IOException {
+		int compacted = 0;
+		for (NarniaaDB shard : shards) {
+			compacted += shard.compact();
+		}
+		return compacted;
+	}
+
+	public int shards() {
+		return shards.length;
+	}
+
+	@Override
+	public void close() {
+		for (NarniaaDB shard : shards) {
+			if (shard != null) shard.close();
+		}
+	}
+}
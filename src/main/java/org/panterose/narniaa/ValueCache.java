@@ -0,0 +1,200 @@
+package org.panterose.narniaa;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of decoded values bounded in bytes, used by {@link NarniaaMap}. Keys are the encoded keys.
+ *
+ * Lookups are a read of a concurrent map and set the referenced bit of the entry, they never lock. Inserts
+ * and evictions take a lock: entries are evicted in CLOCK order, an entry referenced since the hand last
+ * passed is given a second chance. Replaced and invalidated entries stay in the CLOCK until the hand reaches
+ * them, the ring is swept once they are half of it.
+ *
+ * A value loaded while its key is invalidated must not be cached: loaders take the stamp of the key's stripe
+ * before reading the store and the insert is dropped if an invalidation changed it in the meantime.
+ */
+public class ValueCache<V> {
+
+	private static final int STRIPES = 64;
+	//rough heap cost of an entry besides the value
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private final long maxBytes;
+	private final ConcurrentHashMap<ByteBuffer, Node<V>> nodes = new ConcurrentHashMap<>();
+	private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+	private final Object[] locks = new Object[STRIPES];
+	protected final ArrayDeque<Node<V>> clock = new ArrayDeque<>();
+	private final AtomicLong weight = new AtomicLong();
+	//dropped entries still in the clock
+	private final AtomicInteger dead = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public ValueCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return the cached value, null if there is none
+	 */
+	public V get(ByteBuffer key) {
+		Node<V> node = nodes.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+		if (!node.referenced) node.referenced = true;
+		hits.increment();
+		return node.value;
+	}
+
+	/**
+	 * @return the stamp to give to {@link #put(ByteBuffer, Object, long, long)}, taken before loading the value
+	 */
+	public long stamp(ByteBuffer key) {
+		return stamps.get(stripe(key));
+	}
+
+	/**
+	 * cache a loaded value, unless the key was invalidated since stamp was taken.
+	 * @param size: size of the value in bytes
+	 */
+	public void put(ByteBuffer key, V value, long size, long stamp) {
+		long cost = size + ENTRY_OVERHEAD;
+		if (cost > maxBytes) return;
+		Node<V> node = new Node<>(key, value, cost);
+		int stripe = stripe(key);
+		synchronized (locks[stripe]) {
+			if (stamps.get(stripe) != stamp) return;
+			drop(nodes.put(key, node));
+			weight.addAndGet(cost);
+		}
+		synchronized (clock) {
+			clock.add(node);
+			if (dead.get() > clock.size() / 2) sweep();
+			evict();
+		}
+	}
+
+	/**
+	 * remove the value of the key, and make loads in progress for it drop their value.
+	 */
+	public void invalidate(ByteBuffer key) {
+		int stripe = stripe(key);
+		synchronized (locks[stripe]) {
+			stamps.incrementAndGet(stripe);
+			drop(nodes.remove(key));
+		}
+	}
+
+	public void clear() {
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			synchronized (locks[stripe]) {
+				stamps.incrementAndGet(stripe);
+			}
+		}
+		for (ByteBuffer key : nodes.keySet()) {
+			invalidate(key);
+		}
+	}
+
+	private void evict() {
+		while (weight.get() > maxBytes && !clock.isEmpty()) {
+			Node<V> node = clock.poll();
+			if (node.dead) {
+				dead.decrementAndGet();
+				continue;
+			}
+			if (node.referenced) {
+				node.referenced = false;
+				clock.add(node);
+				continue;
+			}
+			synchronized (locks[stripe(node.key)]) {
+				if (!node.dead && nodes.remove(node.key, node)) {
+					drop(node);
+					//already out of the clock
+					dead.decrementAndGet();
+					evictions.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * remove the dropped entries from the clock, under its lock.
+	 */
+	private void sweep() {
+		clock.removeIf(node -> {
+			if (!node.dead) return false;
+			dead.decrementAndGet();
+			return true;
+		});
+	}
+
+	//under the lock of the stripe
+	private void drop(Node<V> node) {
+		if (node == null) return;
+		node.dead = true;
+		dead.incrementAndGet();
+		weight.addAndGet(-node.cost);
+	}
+
+	private static int stripe(ByteBuffer key) {
+		return key.hashCode() & (STRIPES - 1);
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return estimated bytes held by the cache
+	 */
+	public long weight() {
+		return weight.get();
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public String toString() {
+		return "ValueCache [size=" + size() + ", weight=" + weight() + ", maxBytes=" + maxBytes + ", hits=" + hits()
+				+ ", misses=" + misses() + ", evictions=" + evictions() + "]";
+	}
+
+	static final class Node<V> {
+		final ByteBuffer key;
+		final V value;
+		final long cost;
+		volatile boolean referenced;
+		volatile boolean dead;
+
+		Node(ByteBuffer key, V value, long cost) {
+			this.key = key;
+			this.value = value;
+			this.cost = cost;
+		}
+	}
+}
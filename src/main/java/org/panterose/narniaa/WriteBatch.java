@@ -0,0 +1,54 @@
+package org.panterose.narniaa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Key/value pairs written together by {@link NarniaaDB#write(WriteBatch, boolean)}: the values get one
+ * contiguous range of the data file, their records one contiguous range of the index log, and the entries
+ * are published in one step.
+ *
+ * The batch keeps references on the arrays, they must not be modified until it is written. When a key is
+ * put several times the last value wins.
+ */
+public class WriteBatch {
+
+	private final List<byte[]> keys = new ArrayList<>();
+	private final List<byte[]> values = new ArrayList<>();
+	private long dataSize;
+
+	public WriteBatch put(byte[] key, byte[] value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		keys.add(key);
+		values.add(value);
+		dataSize += value.length;
+		return this;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	/**
+	 * @return sum of the sizes of the values
+	 */
+	public long dataSize() {
+		return dataSize;
+	}
+
+	public byte[] key(int i) {
+		return keys.get(i);
+	}
+
+	public byte[] value(int i) {
+		return values.get(i);
+	}
+
+	public void clear() {
+		keys.clear();
+		values.clear();
+		dataSize = 0;
+	}
+}
@@ -2,9 +2,36 @@ package org.panterose.narniaa;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.openhft.lang.io.Bytes;
 
@@ -12,7 +39,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.panterose.narniaa.NarniaaDB.BeniEntry;
-import org.panterose.narniaa.NarniaaDB.BeniKey;
+import org.panterose.narniaa.NarniaaDB.BeniValue;
 
 
 public class NarniaaDBTest {
@@ -38,10 +65,8 @@ public class NarniaaDBTest {
 			// inserting one entry
 			db.put(key1, val1);
 			assertEquals(1, db.entries.size());
-			assertEquals(2 + 4 + 8 * 2, db.entrySize(2));
-			BeniKey key = db.entries.keySet().iterator().next();
-			assertArrayEquals(key1, key.getKey()); 
-			BeniEntry entry = db.entries.values().iterator().next();
+			assertEquals(2 + 4 + 8 * 2 + 4 + 4, db.entrySize(2));
+			BeniEntry entry = db.entries.get(key1);
 			assertEquals(0, entry.getKeyOffset());
 			assertEquals(0, entry.getValueOffset());
 			assertEquals(3, entry.getValueSize());
@@ -65,9 +90,7 @@ public class NarniaaDBTest {
 			// inserting another entry
 			db.put(key2, val2);
 			assertEquals(2, db.entries.size());
-			key = db.entries.keySet().iterator().next();
-			assertArrayEquals(key2, key.getKey()); 
-			entry = db.entries.values().iterator().next();
+			entry = db.entries.get(key2);
 			assertEquals(db.entrySize(2), entry.getKeyOffset());
 			assertEquals(3, entry.getValueOffset());
 			assertEquals(4, entry.getValueSize());
@@ -129,9 +152,7 @@ public class NarniaaDBTest {
 			//add a third entry after that.
 			db.put(key3, val3);
 			assertEquals(3, db.entries.size());
-			BeniKey key = db.entries.keySet().iterator().next();
-			assertArrayEquals(key3, key.getKey()); 
-			BeniEntry entry = db.entries.values().iterator().next();
+			BeniEntry entry = db.entries.get(key3);
 			assertEquals(db.entrySize(2) * 2, entry.getKeyOffset());
 			assertEquals(7, entry.getValueOffset());
 			assertEquals(5, entry.getValueSize());
@@ -149,7 +170,7 @@ public class NarniaaDBTest {
 			db.put(key1, val3);
 			assertEquals(2, db.entries.size());
 			assertArrayEquals(val3, db.get(key1));
-			BeniEntry entry = db.entries.get(new BeniKey(key1));
+			BeniEntry entry = db.entries.get(key1);
 			assertEquals(7, entry.getValueOffset());
 			assertEquals(5, entry.getValueSize());
 			assertEquals(12, db.valueMaxOffset.get());
@@ -186,11 +207,13 @@ public class NarniaaDBTest {
 			// now doing update
 			bytes[1039] = 41;
 			db.put(key1, bytes);
-			BeniEntry entry = db.entries.get(new BeniKey(key1));
+			BeniEntry entry = db.entries.get(key1);
 			assertEquals(1040, entry.getValueOffset());
 			assertEquals(1040, entry.getValueSize());
 			assertEquals(1040 * 2, db.valueMaxOffset.get());
-			Bytes bi = db.indexFile.bytes(0, db.entrySize(2));
+			//the update is appended to the log
+			assertEquals(db.entrySize(2), entry.getKeyOffset());
+			Bytes bi = db.indexFile.bytes(db.entrySize(2), db.entrySize(2));
 			assertEquals(1040, bi.readLong());
 			assertEquals(1040, bi.readLong());
 			assertEquals(2, bi.readInt());
@@ -223,7 +246,7 @@ public class NarniaaDBTest {
 			assertEquals(1, bd.readByte(1040 - 1024));
 			bd.release();
 			assertEquals(2, db.entries.size());
-			entry = db.entries.get(new BeniKey(key2));
+			entry = db.entries.get(key2);
 			assertEquals(4160, entry.getValueOffset());
 			assertEquals(1040, entry.getValueSize());
 			assertEquals(1040 * 5, db.valueMaxOffset.get());
@@ -231,4 +254,927 @@ public class NarniaaDBTest {
 			//assertEquals(1, bd.readByte(4 * (1040 - 1024)));
 		}
 	}
+	
+	@Test
+	public void manykeys() throws IOException {
+		File test = folder.newFile("manykeys");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1 << 16, true)) {
+			for (int i = 0; i < 20_000; i++) {
+				db.put(intKey(i), intKey(i * 2));
+			}
+			assertEquals(20_000, db.entries.size());
+			for (int i = 0; i < 20_000; i++) {
+				assertArrayEquals(intKey(i * 2), db.get(intKey(i)));
+			}
+			assertNull(db.get(intKey(20_000)));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1 << 16, true)) {
+			assertEquals(20_000, db.entries.size());
+			for (int i = 0; i < 20_000; i += 7) {
+				assertArrayEquals(intKey(i * 2), db.get(intKey(i)));
+			}
+		}
+	}
+	
+	@Test
+	public void persistentindex() throws IOException {
+		File test = folder.newFile("persistent");
+		File hash = new File(test.getParentFile(), "persistent.vhash");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key1, val1);
+			db.put(key2, val2);
+		}
+		assertTrue(hash.exists());
+		
+		NarniaaDB crashed = new NarniaaDB(test.toPath(), config);
+		//mapped back from the hash file
+		assertEquals(2, crashed.entries.size());
+		assertEquals(7, crashed.valueMaxOffset.get());
+		assertArrayEquals(val2, crashed.get(key2));
+		crashed.put(key3, val3);
+		crashed.put(key1, val2);
+		//no close, the hash file stays dirty and the log must be replayed
+		
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			assertEquals(3, db.entries.size());
+			assertEquals(16, db.valueMaxOffset.get());
+			assertArrayEquals(val2, db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+			assertArrayEquals(val3, db.get(key3));
+		}
+		
+		//disabling it drops the hash file
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config.persistentIndex(false))) {
+			assertFalse(hash.exists());
+			assertArrayEquals(val3, db.get(key3));
+		}
+	}
+	
+	@Test
+	public void view() throws IOException {
+		File test = folder.newFile("view");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			assertNull(db.view(key1));
+			db.put(key1, val1);
+			byte[] bytes = new byte[1040];
+			bytes[0] = 1;
+			bytes[1020] = 24;
+			bytes[1039] = 40;
+			db.put(key2, bytes);
+			
+			//in one block
+			try (BeniValue value = db.view(key1)) {
+				assertTrue(value.isContiguous());
+				assertEquals(3, value.size());
+				Bytes in = value.bytes();
+				assertEquals(val1[1], in.readByte(1));
+				assertEquals(val1[2], in.readByte(2));
+				assertEquals(val1[2], value.buffer().get(2));
+			}
+			
+			//accross 2 blocks
+			byte[] read = new byte[1040];
+			try (BeniValue value = db.view(key2)) {
+				assertFalse(value.isContiguous());
+				List<Long> positions = new ArrayList<>();
+				value.visit((fragment, position) -> {
+					positions.add(position);
+					fragment.read(read, (int) position, (int) fragment.remaining());
+				});
+				assertEquals(Arrays.asList(0L, 1021L), positions);
+			}
+			assertArrayEquals(bytes, read);
+			
+			assertTrue(db.read(key1, (fragment, position) -> assertEquals(3, fragment.remaining())));
+			assertFalse(db.read(key3, (fragment, position) -> fail()));
+		}
+	}
+	
+	@Test
+	public void compaction() throws IOException {
+		File test = folder.newFile("compaction");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		byte[] first = new byte[600];
+		byte[] second = new byte[600];
+		byte[] other = new byte[400];
+		Arrays.fill(first, (byte) 7);
+		Arrays.fill(second, (byte) 8);
+		Arrays.fill(other, (byte) 9);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key1, first);
+			db.put(key2, other);
+			db.put(key1, second);
+			db.put(key3, new byte[1000]);
+			assertEquals(600, db.blockStats.dead(0));
+			assertEquals(400 + 24, db.blockStats.live(0));
+			assertEquals(600, db.blockStats.deadBytes());
+			
+			//only the first block is mostly dead
+			assertEquals(1, db.compact());
+			assertEquals(0, db.blockStats.live(0));
+			assertEquals(0, db.blockStats.dead(0));
+			assertEquals(1024, db.blockStats.reclaimed(0));
+			assertEquals(2600 + 400 + 600, db.valueMaxOffset.get());
+			assertArrayEquals(second, db.get(key1));
+			assertArrayEquals(other, db.get(key2));
+			
+			//moving the second value of key1 left the next block mostly dead
+			assertEquals(576, db.blockStats.dead(1));
+			assertEquals(1, db.compact());
+			assertEquals(0, db.blockStats.live(1));
+			assertArrayEquals(new byte[1000], db.get(key3));
+			assertArrayEquals(second, db.get(key1));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config.persistentIndex(false))) {
+			//moved entries were rewritten in the log
+			assertArrayEquals(second, db.get(key1));
+			assertArrayEquals(other, db.get(key2));
+			assertEquals(3, db.entries.size());
+		}
+	}
+	
+	@Test
+	public void compactionview() throws IOException {
+		File test = folder.newFile("compactionview");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		byte[] other = new byte[400];
+		Arrays.fill(other, (byte) 9);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key1, new byte[600]);
+			db.put(key2, other);
+			db.put(key1, new byte[600]);
+			db.put(key3, new byte[1000]);
+			
+			//the view looked key2 up in the first block, it is kept until the view is closed
+			BeniValue view = db.view(key2);
+			assertEquals(1, db.compact());
+			assertEquals(0, db.blockStats.live(0));
+			assertEquals(0, db.blockStats.reclaimed(0));
+			assertEquals(9, view.bytes().readByte(399));
+			assertArrayEquals(other, db.get(key2));
+			view.close();
+			
+			db.compact();
+			assertEquals(1024, db.blockStats.reclaimed(0));
+			assertArrayEquals(other, db.get(key2));
+		}
+	}
+	
+	@Test
+	public void compactionreuse() throws IOException {
+		File test = folder.newFile("compactionreuse");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		byte[] other = new byte[300];
+		Arrays.fill(other, (byte) 9);
+		long reclaimed;
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key2, other);
+			for (int i = 0; i < 2000; i++) {
+				byte[] value = new byte[100];
+				Arrays.fill(value, (byte) i);
+				db.put(key1, value);
+				if (i % 10 == 9) db.compact();
+			}
+			//the emptied blocks are filled again instead of growing the file
+			assertTrue(db.valueMaxOffset.get() < 16 * 1024);
+			assertTrue(db.blockStats.reclaimedBytes() > 100 * 1024);
+			reclaimed = db.blockStats.reclaimedBytes();
+			byte[] last = new byte[100];
+			Arrays.fill(last, (byte) 1999);
+			assertArrayEquals(last, db.get(key1));
+			assertArrayEquals(other, db.get(key2));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			//the counters are saved with the index, not recomputed
+			assertEquals(reclaimed, db.blockStats.reclaimedBytes());
+			assertEquals(400, db.blockStats.liveBytes());
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config.persistentIndex(false))) {
+			byte[] last = new byte[100];
+			Arrays.fill(last, (byte) 1999);
+			assertArrayEquals(last, db.get(key1));
+			assertArrayEquals(other, db.get(key2));
+		}
+	}
+	
+	@Test
+	public void logcompaction() throws IOException {
+		File test = folder.newFile("logcompaction");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			for (int i = 0; i < 1000; i++) {
+				db.put(key1, new byte[] { (byte) i });
+			}
+			db.put(key2, val2);
+			db.put(key3, val3);
+			db.remove(key3);
+			assertEquals(1003 * db.entrySize(2), db.indexMaxOffset.get());
+			
+			NarniaaSnapshot snapshot = db.snapshot();
+			try {
+				db.compactLog();
+				fail("compacted the log under a snapshot");
+			} catch (IllegalStateException e) {
+				assertEquals(1003 * db.entrySize(2), db.indexMaxOffset.get());
+			}
+			snapshot.close();
+			
+			//one record per key, the removal is gone
+			assertEquals(1001 * db.entrySize(2), db.compactLog());
+			assertEquals(2 * db.entrySize(2), db.indexMaxOffset.get());
+			assertEquals(2 * db.entrySize(2), db.indexFile.size());
+			assertArrayEquals(new byte[] { (byte) 999 }, db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+			assertNull(db.get(key3));
+			
+			//the writers append to the new log
+			db.put(key3, val1);
+			db.put(key1, val3);
+			assertEquals(4 * db.entrySize(2), db.indexFile.size());
+			assertArrayEquals(val1, db.get(key3));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config.persistentIndex(false))) {
+			assertEquals(3, db.size());
+			assertArrayEquals(val3, db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+			assertArrayEquals(val1, db.get(key3));
+		}
+	}
+	
+	@Test
+	public void batch() throws IOException {
+		File test = folder.newFile("batch");
+		byte[] big = new byte[1500];
+		big[1499] = 15;
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			db.put(key1, val1);
+			
+			WriteBatch batch = new WriteBatch()
+					.put(key2, val2)
+					.put(key1, val3)
+					.put(key3, big)
+					.put(key2, val1);
+			assertEquals(4, batch.size());
+			assertEquals(1, db.write(batch, true));
+			
+			assertEquals(3, db.entries.size());
+			assertArrayEquals(val3, db.get(key1));
+			assertArrayEquals(val1, db.get(key2));
+			assertArrayEquals(big, db.get(key3));
+			//one range for the values, one for the records
+			assertEquals(3 + 5 + 3 + 1500, db.valueMaxOffset.get());
+			assertEquals(4 * db.entrySize(2), db.indexMaxOffset.get());
+			//in the order of the last put of each key
+			assertEquals(3, db.entries.get(key1).getValueOffset());
+			assertEquals(3 + 5, db.entries.get(key3).getValueOffset());
+			assertEquals(3 + 5 + 1500, db.entries.get(key2).getValueOffset());
+			assertEquals(3, db.blockStats.deadBytes());
+			assertEquals(0, db.write(new WriteBatch(), false));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1024).persistentIndex(false))) {
+			assertArrayEquals(val3, db.get(key1));
+			assertArrayEquals(val1, db.get(key2));
+			assertArrayEquals(big, db.get(key3));
+		}
+	}
+	
+	@Test
+	public void recovery() throws IOException {
+		File test = folder.newFile("recovery");
+		File idxFile = new File(test.getParentFile(), "recovery.vidx");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true).persistentIndex(false)
+				.durability(Durability.SYNC);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key1, val1);
+			db.put(key2, val2);
+		}
+		long size = 2 * (2 + 4 + 8 * 2 + 4 + 4);
+		assertEquals(size, idxFile.length());
+		
+		//a record torn by a crash, without its commit marker
+		try (RandomAccessFile raf = new RandomAccessFile(idxFile, "rw")) {
+			raf.seek(size);
+			byte[] torn = new byte[24];
+			Arrays.fill(torn, (byte) 1);
+			raf.write(torn);
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			assertEquals(size, db.indexMaxOffset.get());
+			assertEquals(size, db.indexFile.size());
+			assertEquals(2, db.entries.size());
+			assertArrayEquals(val1, db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+			db.put(key3, val3);
+			db.put(key1, val2);
+		}
+		
+		//a record corrupted on disk, a byte of its key flipped
+		try (RandomAccessFile raf = new RandomAccessFile(idxFile, "rw")) {
+			raf.seek(size + 8 * 2 + 4);
+			raf.write(7);
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			//the corrupted record is skipped, the update after it is kept
+			assertEquals(2 * size, db.indexFile.size());
+			assertNull(db.get(key3));
+			assertArrayEquals(val2, db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			//and was overwritten with padding
+			assertEquals(2 * size, db.indexMaxOffset.get());
+			assertEquals(2, db.entries.size());
+			assertArrayEquals(val2, db.get(key1));
+		}
+	}
+	
+	@Test
+	public void remove() throws IOException {
+		File test = folder.newFile("remove");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			db.put(key1, val1);
+			db.put(key2, val2);
+			assertTrue(db.remove(key1));
+			assertFalse(db.remove(key1));
+			assertFalse(db.remove(key3));
+			assertNull(db.get(key1));
+			assertArrayEquals(val2, db.get(key2));
+			assertEquals(1, db.entries.size());
+			assertEquals(3, db.blockStats.deadBytes());
+			//a tombstone was appended
+			assertEquals(3 * db.entrySize(2), db.indexMaxOffset.get());
+			
+			for (int i = 0; i < 5000; i++) {
+				db.put(intKey(i), intKey(i));
+			}
+			for (int i = 0; i < 5000; i += 2) {
+				assertTrue(db.remove(intKey(i)));
+			}
+			db.put(key1, val3);
+		}
+		NarniaaConfig replay = new NarniaaConfig().blockSize(1024).persistentIndex(false);
+		for (NarniaaConfig config : Arrays.asList(new NarniaaConfig().blockSize(1024), replay)) {
+			try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+				assertEquals(2 + 2500, db.entries.size());
+				assertArrayEquals(val3, db.get(key1));
+				for (int i = 0; i < 5000; i++) {
+					if (i % 2 == 0) {
+						assertNull(db.get(intKey(i)));
+					} else {
+						assertArrayEquals(intKey(i), db.get(intKey(i)));
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void concurrent() throws Exception {
+		File test = folder.newFile("concurrent");
+		int threads = 8;
+		int keys = 500;
+		int puts = 5000;
+		Map<ByteBuffer, byte[]> live = new HashMap<>();
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				writers.add(executor.submit(() -> {
+					Random random = new Random(thread);
+					for (int i = 0; i < puts; i++) {
+						byte[] value = new byte[1 + random.nextInt(100)];
+						value[0] = (byte) thread;
+						db.put(intKey(random.nextInt(keys)), value);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+			executor.shutdown();
+			
+			//one slot per key, and the log is made of whole records only
+			assertEquals(keys, db.entries.size());
+			assertEquals(threads * puts * db.entrySize(4), db.indexMaxOffset.get());
+			long liveBytes = 0;
+			for (int i = 0; i < keys; i++) {
+				byte[] value = db.get(intKey(i));
+				live.put(ByteBuffer.wrap(intKey(i)), value);
+				liveBytes += value.length;
+			}
+			assertEquals(liveBytes, db.blockStats.liveBytes());
+		}
+		//replay finds the same last writer for each key
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1024).persistentIndex(false))) {
+			assertEquals(keys, db.entries.size());
+			for (int i = 0; i < keys; i++) {
+				assertArrayEquals(live.get(ByteBuffer.wrap(intKey(i))), db.get(intKey(i)));
+			}
+		}
+	}
+	
+	@Test
+	public void concurrentchannels() throws Exception {
+		File test = folder.newFile("concurrentchannels");
+		int threads = 4;
+		int puts = 300;
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				writers.add(executor.submit(() -> {
+					Random random = new Random(thread);
+					for (int i = 0; i < puts; i++) {
+						byte[] value = new byte[1 + random.nextInt(3000)];
+						Arrays.fill(value, (byte) (thread * puts + i));
+						byte[] key = intKey(thread * puts + i);
+						//the channel writes race the array writes mapping new blocks
+						switch (i % 3) {
+						case 0:
+							db.put(key, value);
+							break;
+						case 1:
+							db.put(key, Channels.newChannel(new ByteArrayInputStream(value)), value.length);
+							break;
+						default:
+							ByteBuffer direct = ByteBuffer.allocateDirect(value.length);
+							direct.put(value).flip();
+							db.put(key, direct);
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+			executor.shutdown();
+			
+			for (int t = 0; t < threads; t++) {
+				Random random = new Random(t);
+				for (int i = 0; i < puts; i++) {
+					byte[] value = new byte[1 + random.nextInt(3000)];
+					Arrays.fill(value, (byte) (t * puts + i));
+					assertArrayEquals(value, db.get(intKey(t * puts + i)));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void scan() throws IOException {
+		File test = folder.newFile("scan");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true).sortedIndex(true);
+		byte[] high = new byte[]{(byte) 0xff, 0};
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key3, val3);
+			db.put(high, val1);
+			db.put(key1, val1);
+			db.put(key2, val2);
+			db.write(new WriteBatch().put(new byte[]{1}, val1).put(new byte[]{1, 5}, val2), false);
+			
+			List<byte[]> keys = new ArrayList<>();
+			db.scan(null, null).forEachRemaining(pair -> keys.add(pair.getKey()));
+			//unsigned order, 0xff last
+			assertArrayEquals(new byte[][]{key1, key2, key3, {1}, {1, 5}, high}, keys.toArray(new byte[0][]));
+			
+			Iterator<Map.Entry<byte[], byte[]>> range = db.scan(key2, new byte[]{1});
+			assertArrayEquals(val2, range.next().getValue());
+			assertArrayEquals(val3, range.next().getValue());
+			assertFalse(range.hasNext());
+			assertFalse(db.scan(key2, key2).hasNext());
+			
+			Iterator<Map.Entry<byte[], byte[]>> prefix = db.prefixScan(new byte[]{1});
+			assertArrayEquals(new byte[]{1}, prefix.next().getKey());
+			assertArrayEquals(val2, prefix.next().getValue());
+			assertFalse(prefix.hasNext());
+			assertArrayEquals(high, db.prefixScan(new byte[]{(byte) 0xff}).next().getKey());
+			
+			db.remove(key2);
+			assertArrayEquals(key3, db.scan(key2, null).next().getKey());
+			
+			//more keys than a batch, values spread over many blocks
+			for (int i = 0; i < 300; i++) {
+				db.put(intKey(1000 - i), intKey(i));
+			}
+		}
+		for (NarniaaConfig reopen : Arrays.asList(config, new NarniaaConfig().blockSize(1024).sortedIndex(true).persistentIndex(false))) {
+			try (NarniaaDB db = new NarniaaDB(test.toPath(), reopen)) {
+				//the keys are added by the first scan, not on open
+				assertEquals(0, db.sorted.size());
+				Iterator<Map.Entry<byte[], byte[]>> it = db.prefixScan(new byte[]{0, 0});
+				assertArrayEquals(key1, it.next().getKey());
+				for (int i = 299; i >= 0; i--) {
+					Map.Entry<byte[], byte[]> pair = it.next();
+					assertArrayEquals(intKey(1000 - i), pair.getKey());
+					assertArrayEquals(intKey(i), pair.getValue());
+				}
+				assertFalse(it.hasNext());
+				assertArrayEquals(key3, db.scan(intKey(1001), null).next().getKey());
+			}
+		}
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void noscan() throws IOException {
+		try (NarniaaDB db = new NarniaaDB(folder.newFile("noscan").toPath(), 1024, true)) {
+			db.scan(null, null);
+		}
+	}
+	
+	@Test
+	public void channels() throws IOException {
+		File test = folder.newFile("channels");
+		byte[] big = new byte[3000];
+		new Random(0).nextBytes(big);
+		File source = folder.newFile("source");
+		Files.write(source.toPath(), big);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			db.put(key1, val1);
+			try (FileChannel src = FileChannel.open(source.toPath())) {
+				assertFalse(db.put(key2, src, big.length));
+			}
+			assertEquals(3 + 3000, db.valueMaxOffset.get());
+			assertArrayEquals(big, db.get(key2));
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(3000, db.get(key2, Channels.newChannel(out)));
+			assertArrayEquals(big, out.toByteArray());
+			out.reset();
+			assertEquals(3, db.get(key1, Channels.newChannel(out)));
+			assertArrayEquals(val1, out.toByteArray());
+			assertEquals(-1, db.get(key3, Channels.newChannel(out)));
+			
+			//the source is shorter than announced
+			try (FileChannel src = FileChannel.open(source.toPath())) {
+				db.put(key3, src, big.length + 1);
+				fail();
+			} catch (EOFException e) {
+				assertNull(db.get(key3));
+				assertEquals(3 + 3000 + 3001, db.valueMaxOffset.get());
+				assertEquals(3001, db.blockStats.deadBytes());
+			}
+		}
+	}
+	
+	@Test
+	public void getall() throws IOException {
+		File test = folder.newFile("getall");
+		byte[] big = new byte[3000];
+		new Random(0).nextBytes(big);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			for (int i = 0; i < 500; i++) {
+				db.put(intKey(i), intKey(i * 3));
+			}
+			db.put(key2, big);
+			db.put(key1, val1);
+			List<byte[]> keys = new ArrayList<>();
+			for (int i = 499; i >= 0; i -= 7) {
+				keys.add(intKey(i));
+			}
+			keys.add(key3);
+			keys.add(key2);
+			keys.add(key1);
+			for (boolean prefetch : new boolean[]{ false, true }) {
+				List<byte[]> values = db.getAll(keys, prefetch);
+				assertEquals(keys.size(), values.size());
+				for (int i = 0; i < keys.size() - 3; i++) {
+					assertArrayEquals(intKey((499 - 7 * i) * 3), values.get(i));
+				}
+				assertNull(values.get(keys.size() - 3));
+				assertArrayEquals(big, values.get(keys.size() - 2));
+				assertArrayEquals(val1, values.get(keys.size() - 1));
+			}
+			
+			//in place, in the order of the data file
+			List<byte[]> visited = new ArrayList<>();
+			long[] last = { -1 };
+			db.getAll(keys, true, (key, value) -> {
+				visited.add(key);
+				byte[] bytes = new byte[(int) value.size()];
+				value.visit((fragment, position) -> fragment.readFully(0, bytes, (int) position, (int) fragment.capacity()));
+				assertArrayEquals(db.get(key), bytes);
+				long[] entry = new long[3];
+				assertTrue(db.entries.lookup(key, entry));
+				assertTrue(entry[0] > last[0]);
+				last[0] = entry[0];
+			});
+			assertEquals(keys.size() - 1, visited.size());
+			assertArrayEquals(key1, visited.get(visited.size() - 1));
+		}
+	}
+	
+	@Test
+	public void parallelrecovery() throws IOException {
+		File test = folder.newFile("parallelrecovery");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 16).persistentIndex(false);
+		Map<Integer, Integer> expected = new HashMap<>();
+		Random random = new Random(0);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			for (int i = 0; i < 100000; i++) {
+				int key = random.nextInt(20000);
+				if (random.nextInt(4) == 0) {
+					db.remove(intKey(key));
+					expected.remove(key);
+				} else {
+					db.put(intKey(key), intKey(i));
+					expected.put(key, i);
+				}
+			}
+		}
+		long[] progress = { 0, 0 };
+		RecoveryListener listener = new RecoveryListener() {
+			@Override
+			public synchronized void progress(long replayed, long size) {
+				progress[0] = Math.max(progress[0], replayed);
+			}
+			
+			@Override
+			public void recovered(long records, long size, long nanos) {
+				progress[1] = records;
+			}
+		};
+		for (int threads : new int[]{ 1, 4 }) {
+			try (NarniaaDB db = new NarniaaDB(test.toPath(), config.recoveryThreads(threads).recoveryListener(listener))) {
+				assertEquals(expected.size(), db.size());
+				for (int key = 0; key < 20000; key++) {
+					Integer value = expected.get(key);
+					if (value == null) {
+						assertNull(db.get(intKey(key)));
+					} else {
+						assertArrayEquals(intKey(value), db.get(intKey(key)));
+					}
+				}
+				assertEquals(db.indexMaxOffset.get(), progress[0]);
+				assertTrue(progress[1] > 75000);
+			}
+		}
+	}
+	
+	@Test
+	public void snapshot() throws IOException {
+		File test = folder.newFile("snapshot");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1024).deleteOnExit(true).sortedIndex(true))) {
+			for (int i = 0; i < 100; i++) {
+				db.put(intKey(i), intKey(i));
+			}
+			try (NarniaaSnapshot snapshot = db.snapshot()) {
+				for (int i = 10; i < 20; i++) {
+					db.remove(intKey(i));
+				}
+				for (int i = 20; i < 30; i++) {
+					db.put(intKey(i), intKey(-i));
+				}
+				db.remove(intKey(20));
+				for (int i = 100; i < 110; i++) {
+					db.put(intKey(i), intKey(i));
+				}
+				assertEquals(99, db.size());
+				assertNull(db.get(intKey(15)));
+				assertArrayEquals(intKey(-25), db.get(intKey(25)));
+				
+				assertArrayEquals(intKey(15), snapshot.get(intKey(15)));
+				assertArrayEquals(intKey(20), snapshot.get(intKey(20)));
+				assertArrayEquals(intKey(25), snapshot.get(intKey(25)));
+				assertNull(snapshot.get(intKey(105)));
+				Iterator<Map.Entry<byte[], byte[]>> it = snapshot.scan(null, null);
+				for (int i = 0; i < 100; i++) {
+					Map.Entry<byte[], byte[]> pair = it.next();
+					assertArrayEquals(intKey(i), pair.getKey());
+					assertArrayEquals(intKey(i), pair.getValue());
+				}
+				assertFalse(it.hasNext());
+				Map<Integer, Integer> pairs = new HashMap<>();
+				snapshot.forEach((key, value) -> assertNull(pairs.put(ByteBuffer.wrap(key).getInt(), ByteBuffer.wrap(value).getInt())));
+				assertEquals(100, pairs.size());
+				for (int i = 0; i < 100; i++) {
+					assertEquals(i, (int) pairs.get(i));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void snapshotcompaction() throws IOException {
+		File test = folder.newFile("snapshotcompaction");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).deleteOnExit(true);
+		byte[] first = new byte[600];
+		byte[] other = new byte[400];
+		Arrays.fill(first, (byte) 7);
+		Arrays.fill(other, (byte) 9);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			db.put(key1, first);
+			db.put(key2, other);
+			NarniaaSnapshot snapshot = db.snapshot();
+			db.put(key1, new byte[600]);
+			db.put(key3, new byte[1000]);
+			
+			//key2 is moved, the block is kept for the snapshot
+			assertEquals(1, db.compact());
+			assertEquals(0, db.blockStats.live(0));
+			assertEquals(0, db.blockStats.reclaimed(0));
+			assertArrayEquals(first, snapshot.get(key1));
+			assertArrayEquals(other, snapshot.get(key2));
+			assertNull(snapshot.get(key3));
+			assertArrayEquals(other, db.get(key2));
+			
+			snapshot.close();
+			db.compact();
+			assertEquals(1024, db.blockStats.reclaimed(0));
+			assertArrayEquals(other, db.get(key2));
+		}
+	}
+	
+	@Test
+	public void metrics() throws Exception {
+		File test = folder.newFile("metrics");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			assertNull(db.metrics());
+		}
+		ObjectName name = new ObjectName("org.panterose.narniaa:type=NarniaaDB,name=" + ObjectName.quote(test.getAbsolutePath()));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1024).deleteOnExit(true).metrics(true))) {
+			NarniaaMetrics metrics = db.metrics();
+			assertTrue(metrics.getOpenNanos() > 0);
+			for (int i = 0; i < 10; i++) {
+				db.put(intKey(i), new byte[600]);
+			}
+			db.put(intKey(0), new byte[10]);
+			for (int i = 0; i < 20; i++) {
+				db.get(intKey(i));
+			}
+			assertEquals(11, metrics.getPutCount());
+			assertEquals(20, metrics.getGetCount());
+			//one value in two ends in the next block
+			assertEquals(5, metrics.getCrossBlockValues());
+			assertEquals(6010, metrics.getBytesWritten());
+			assertEquals(9 * 600 + 10, metrics.getBytesRead());
+			//a block per put and per get, one more for the values across blocks
+			assertEquals(11 + 5 + 10 + 5, metrics.getBlockAcquires());
+			assertEquals(600, metrics.getDeadBytes());
+			assertTrue(metrics.getPut50() > 0);
+			assertTrue(metrics.getPut99() <= metrics.getPutMax());
+			assertEquals(10L, server.getAttribute(name, "Keys"));
+			assertEquals(20L, server.getAttribute(name, "GetCount"));
+		}
+		assertFalse(server.isRegistered(name));
+		
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(500000, histogram.percentile(50), 500000 / 16);
+		assertEquals(990000, histogram.percentile(99), 990000 / 16);
+		assertEquals(1000000, histogram.max(), 1000000 / 16);
+		for (long value : new long[]{ 0, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+			assertTrue(LatencyHistogram.value(LatencyHistogram.bucket(value)) >= value);
+			assertTrue(LatencyHistogram.value(LatencyHistogram.bucket(value)) - value <= value / 16);
+		}
+	}
+	
+	@Test
+	public void preallocation() throws Exception {
+		File test = folder.newFile("preallocation");
+		int blockSize = 1 << 16;
+		NarniaaConfig config = new NarniaaConfig().blockSize(blockSize).preallocateBlocks(2).readAheadBlocks(2).metrics(true);
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			NarniaaMetrics metrics = db.metrics();
+			//the two blocks after the tail are prepared on open
+			await(() -> metrics.getBlocksPreallocated() == 2);
+			assertTrue(new File(folder.getRoot(), "preallocation.vdb").length() >= 3 * blockSize);
+			for (int i = 0; i < 300; i++) {
+				byte[] value = new byte[1000];
+				Arrays.fill(value, (byte) i);
+				db.put(intKey(i), value);
+			}
+			assertTrue(metrics.getPreallocatedAcquires() > 0);
+			await(() -> metrics.getBlocksPreallocated() >= 5);
+			for (int i = 0; i < 300; i++) {
+				byte[] value = db.get(intKey(i));
+				assertEquals(1000, value.length);
+				assertEquals((byte) i, value[0]);
+				assertEquals((byte) i, value[999]);
+			}
+			await(() -> metrics.getBlocksReadAhead() > 0);
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(blockSize))) {
+			assertEquals(300, db.size());
+			assertEquals((byte) 299, db.get(intKey(299))[500]);
+			assertEquals(300 * 1000, db.valueMaxOffset.get());
+		}
+	}
+	
+	@Test
+	public void inplace() throws Exception {
+		File test = folder.newFile("inplace");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1024).inPlaceUpdates(true).metrics(true);
+		byte[] last;
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			NarniaaMetrics metrics = db.metrics();
+			db.put(intKey(1), filled(100, 1));
+			assertTrue(db.put(intKey(1), filled(100, 2)));
+			assertEquals(100, db.valueMaxOffset.get());
+			assertArrayEquals(filled(100, 2), db.get(intKey(1)));
+			assertEquals(1, metrics.getUpdatesInPlace());
+			assertEquals(0, db.blockStats.deadBytes());
+			//a value of another size is appended
+			db.put(intKey(1), filled(50, 3));
+			assertEquals(150, db.valueMaxOffset.get());
+			assertEquals(100, db.blockStats.deadBytes());
+			//across blocks
+			db.put(intKey(2), filled(1500, 4));
+			db.put(intKey(2), filled(1500, 5));
+			assertEquals(1650, db.valueMaxOffset.get());
+			assertArrayEquals(filled(1500, 5), db.get(intKey(2)));
+			//a snapshot may still read the value
+			try (NarniaaSnapshot snapshot = db.snapshot()) {
+				db.put(intKey(1), filled(50, 6));
+				assertEquals(1700, db.valueMaxOffset.get());
+				assertArrayEquals(filled(50, 3), snapshot.get(intKey(1)));
+			}
+			assertEquals(2, metrics.getUpdatesInPlace());
+
+			//readers never see a value partly rewritten
+			ExecutorService executor = Executors.newFixedThreadPool(3);
+			try {
+				db.put(intKey(3), filled(20000, 0));
+				Future<?> writer = executor.submit(() -> {
+					for (int i = 0; i < 2000; i++) {
+						db.put(intKey(3), filled(20000, i));
+					}
+					return null;
+				});
+				List<Future<?>> readers = new ArrayList<>();
+				for (int r = 0; r < 2; r++) {
+					boolean batch = r == 1;
+					readers.add(executor.submit(() -> {
+						while (!writer.isDone()) {
+							byte[] value = batch ? db.getAll(Arrays.asList(intKey(3), intKey(1))).get(0) : db.get(intKey(3));
+							for (byte b : value) {
+								assertEquals(value[0], b);
+							}
+						}
+						return null;
+					}));
+				}
+				writer.get();
+				for (Future<?> reader : readers) {
+					reader.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+			assertEquals(21700, db.valueMaxOffset.get());
+
+			//writers racing on a key, the one recorded last is the value read back
+			executor = Executors.newFixedThreadPool(2);
+			try {
+				List<Future<?>> writers = new ArrayList<>();
+				for (int w = 0; w < 2; w++) {
+					int base = w * 100;
+					writers.add(executor.submit(() -> {
+						for (int i = 0; i < 1000; i++) {
+							db.put(intKey(4), filled(3000, base + i % 100));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> writer : writers) {
+					writer.get();
+				}
+			} finally {
+				executor.shutdown();
+			}
+			last = db.get(intKey(4));
+			assertArrayEquals(filled(3000, last[0]), last);
+		}
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1024))) {
+			assertArrayEquals(filled(50, 6), db.get(intKey(1)));
+			assertArrayEquals(filled(1500, 5), db.get(intKey(2)));
+			assertArrayEquals(filled(20000, 1999), db.get(intKey(3)));
+			assertArrayEquals(last, db.get(intKey(4)));
+		}
+	}
+	
+	private static byte[] filled(int size, int b) {
+		byte[] value = new byte[size];
+		Arrays.fill(value, (byte) b);
+		return value;
+	}
+	
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+	
+	private static byte[] intKey(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
 }
@@ -0,0 +1,79 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NarniaaLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void load() throws IOException {
+		File test = new File(folder.getRoot(), "load");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 16).sortedIndex(true);
+		byte[] big = new byte[100000];
+		big[99999] = 42;
+		Stream<Map.Entry<byte[], byte[]>> pairs = Stream.concat(
+				IntStream.range(0, 20000).mapToObj(i -> new SimpleEntry<>(intKey(i), new byte[i % 300])),
+				Stream.of(new SimpleEntry<>(intKey(7), big), new SimpleEntry<>(intKey(20000), intKey(1))));
+		try (NarniaaDB db = new NarniaaLoader(test.toPath(), config, 3).load(pairs)) {
+			assertEquals(20001, db.size());
+			assertArrayEquals(big, db.get(intKey(7)));
+			assertArrayEquals(new byte[299], db.get(intKey(299)));
+			assertArrayEquals(intKey(1), db.get(intKey(20000)));
+			Iterator<Map.Entry<byte[], byte[]>> it = db.scan(intKey(19999), null);
+			assertArrayEquals(intKey(19999), it.next().getKey());
+			assertArrayEquals(intKey(20000), it.next().getKey());
+			assertFalse(it.hasNext());
+			//the first value of key 7 is dead
+			assertEquals(7, db.blockStats.deadBytes());
+			db.put(intKey(20001), intKey(2));
+		}
+		assertFalse(new File(folder.getRoot(), "load.loading.vidx").exists());
+		assertTrue(new File(folder.getRoot(), "load.vhash").exists());
+
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), config)) {
+			assertEquals(20002, db.size());
+			assertArrayEquals(intKey(2), db.get(intKey(20001)));
+			assertNull(db.get(intKey(20002)));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notempty() throws IOException {
+		File test = folder.newFile("notempty");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024)) {
+			db.put(intKey(1), intKey(1));
+		}
+		new NarniaaLoader(test.toPath(), new NarniaaConfig().blockSize(1024), 1).load(Stream.empty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void strayfile() throws IOException {
+		File test = new File(folder.getRoot(), "strayfile");
+		//a data file without a log would be replaced by the load
+		folder.newFile("strayfile.vdb");
+		new NarniaaLoader(test.toPath(), new NarniaaConfig().blockSize(1024), 1).load(Stream.empty());
+	}
+
+	private static byte[] intKey(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+}
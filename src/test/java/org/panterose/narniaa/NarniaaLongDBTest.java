@@ -0,0 +1,148 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NarniaaLongDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void putget() throws IOException {
+		File test = new File(folder.getRoot(), "longs");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 12);
+		byte[] big = new byte[10000];
+		big[9999] = 42;
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			assertNull(db.get(0));
+			assertFalse(db.put(0, new byte[] { 1 }));
+			assertFalse(db.put(-1, new byte[] { 2 }));
+			assertFalse(db.put(Long.MIN_VALUE, new byte[0]));
+			assertFalse(db.put(Long.MAX_VALUE, big));
+			for (long i = 1; i <= 10000; i++) {
+				db.put(i << 32, ByteBuffer.allocate(8).putLong(0, i).array());
+			}
+			assertTrue(db.put(0, new byte[] { 3 }));
+			assertEquals(10004, db.size());
+			assertArrayEquals(new byte[] { 3 }, db.get(0));
+			assertArrayEquals(new byte[] { 2 }, db.get(-1));
+			assertArrayEquals(new byte[0], db.get(Long.MIN_VALUE));
+			assertArrayEquals(big, db.get(Long.MAX_VALUE));
+			assertEquals(1234, ByteBuffer.wrap(db.get(1234L << 32)).getLong());
+			assertNull(db.get(1));
+
+			ByteBuffer into = ByteBuffer.allocateDirect(16);
+			assertEquals(8, db.get(77L << 32, into));
+			assertEquals(77, into.getLong(0));
+			assertEquals(8, into.position());
+			assertEquals(-1, db.get(1, into));
+
+			assertTrue(db.remove(-1));
+			assertFalse(db.remove(-1));
+			assertFalse(db.containsKey(-1));
+			for (long i = 1; i <= 5000; i++) {
+				assertTrue(db.remove(i << 32));
+			}
+			assertEquals(5003, db.size());
+			assertNull(db.get(2L << 32));
+			assertEquals(5001, ByteBuffer.wrap(db.get(5001L << 32)).getLong());
+		}
+
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			assertEquals(5003, db.size());
+			assertArrayEquals(new byte[] { 3 }, db.get(0));
+			assertNull(db.get(-1));
+			assertArrayEquals(big, db.get(Long.MAX_VALUE));
+			assertNull(db.get(5000L << 32));
+			assertEquals(10000, ByteBuffer.wrap(db.get(10000L << 32)).getLong());
+			db.put(-1, new byte[] { 4 });
+		}
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			assertArrayEquals(new byte[] { 4 }, db.get(-1));
+			assertArrayEquals(new byte[] { 3 }, db.get(0));
+		}
+	}
+
+	@Test
+	public void durability() throws IOException {
+		for (Durability durability : new Durability[] { Durability.SYNC, Durability.PERIODIC }) {
+			File test = new File(folder.getRoot(), "durable-" + durability);
+			NarniaaConfig config = new NarniaaConfig().blockSize(1 << 12).durability(durability).syncInterval(10);
+			byte[] big = new byte[10000];
+			big[9999] = 42;
+			try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+				for (long i = 0; i < 100; i++) {
+					db.put(i, new byte[] { (byte) i });
+				}
+				//across blocks
+				assertFalse(db.put(100, big));
+				assertTrue(db.put(1, new byte[] { 101 }));
+				assertTrue(db.remove(2));
+				assertFalse(db.remove(2));
+			}
+			assertEquals(103 * NarniaaLongDB.RECORD, new File(folder.getRoot(), "durable-" + durability + ".lidx").length());
+			try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+				assertEquals(100, db.size());
+				assertArrayEquals(new byte[] { 101 }, db.get(1));
+				assertNull(db.get(2));
+				assertArrayEquals(new byte[] { 99 }, db.get(99));
+				assertArrayEquals(big, db.get(100));
+			}
+		}
+	}
+
+	@Test
+	public void samepath() throws IOException {
+		File test = new File(folder.getRoot(), "samepath");
+		try (NarniaaLongDB longs = new NarniaaLongDB(test.toPath(), new NarniaaConfig());
+				NarniaaDB db = new NarniaaDB(test.toPath(), new NarniaaConfig())) {
+			longs.put(1, new byte[] { 1 });
+			db.put(new byte[] { 2 }, new byte[] { 2 });
+			assertArrayEquals(new byte[] { 1 }, longs.get(1));
+			assertArrayEquals(new byte[] { 2 }, db.get(new byte[] { 2 }));
+		}
+	}
+
+	@Test
+	public void torn() throws IOException {
+		File test = new File(folder.getRoot(), "torn");
+		NarniaaConfig config = new NarniaaConfig();
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			for (long i = 0; i < 100; i++) {
+				db.put(i, new byte[] { (byte) i });
+			}
+		}
+		File log = new File(folder.getRoot(), "torn.lidx");
+		try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+			//a corrupted record in the middle, an incomplete one at the end
+			file.seek(10 * NarniaaLongDB.RECORD + NarniaaLongDB.KEY_POSITION);
+			file.writeLong(12345);
+			file.setLength(100 * NarniaaLongDB.RECORD + 20);
+		}
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			assertEquals(99, db.size());
+			assertNull(db.get(10));
+			assertNull(db.get(12345));
+			assertArrayEquals(new byte[] { 99 }, db.get(99));
+			db.put(100, new byte[] { 100 });
+		}
+		assertEquals(101 * NarniaaLongDB.RECORD, log.length());
+		try (NarniaaLongDB db = new NarniaaLongDB(test.toPath(), config)) {
+			assertEquals(100, db.size());
+			assertArrayEquals(new byte[] { 100 }, db.get(100));
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.esotericsoftware.kryo.Kryo;
+
+
+public class NarniaaMapTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void documents() throws IOException {
+		File test = folder.newFile("documents");
+		Codec<Document> codec = new KryoCodec<>(Document.class, () -> {
+			Kryo kryo = new Kryo();
+			kryo.setRegistrationRequired(true);
+			kryo.register(byte[].class);
+			return kryo;
+		});
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			NarniaaMap<Integer, Document> docs = new NarniaaMap<>(db, Codecs.INT, codec);
+			Document small = document(1, 100);
+			Document big = document(2, 3000);
+			assertFalse(docs.put(1, small));
+			assertFalse(docs.put(2, big));
+			
+			//in one block
+			Document read = docs.get(1);
+			assertEquals(small, read);
+			assertEquals("1", read.getSym());
+			assertArrayEquals(small.getData(), read.getData());
+			
+			//accross blocks, decoded into the same object
+			Document reused = docs.get(2, read);
+			assertSame(read, reused);
+			assertEquals(big, reused);
+			assertEquals("2", reused.getSym());
+			assertArrayEquals(big.getData(), reused.getData());
+			
+			assertTrue(docs.put(1, big));
+			assertEquals(big, docs.get(1));
+			assertNull(docs.get(3));
+			assertTrue(docs.remove(1));
+			assertNull(docs.get(1));
+		}
+	}
+	
+	@Test
+	public void codecs() throws IOException {
+		File test = folder.newFile("codecs");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true)) {
+			NarniaaMap<String, Long> map = new NarniaaMap<>(db, Codecs.UTF8, Codecs.LONG);
+			map.put("\u00e9t\u00e9", 42L);
+			map.put("winter", -1L);
+			assertEquals(42L, (long) map.get("\u00e9t\u00e9"));
+			assertEquals(-1L, (long) map.get("winter"));
+			assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 42}, db.get("\u00e9t\u00e9".getBytes("UTF-8")));
+			
+			NarniaaMap<byte[], byte[]> raw = new NarniaaMap<>(db, Codecs.BYTES, Codecs.BYTES);
+			assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 42}, raw.get("\u00e9t\u00e9".getBytes("UTF-8")));
+		}
+	}
+	
+	@Test
+	public void cache() throws IOException {
+		File test = folder.newFile("cache");
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1 << 16, true)) {
+			//room for about 10 documents of 1000 bytes
+			NarniaaMap<Integer, Document> docs = new NarniaaMap<>(db, Codecs.INT, new KryoCodec<>(Document.class), 11_000);
+			ValueCache<Document> cache = docs.cache();
+			for (int i = 0; i < 100; i++) {
+				docs.put(i, document(i, 1000));
+			}
+			Document first = docs.get(1);
+			assertSame(first, docs.get(1));
+			assertEquals(1, cache.hits());
+			assertEquals(1, cache.misses());
+			
+			//a write invalidates
+			docs.put(1, document(1, 10));
+			Document updated = docs.get(1);
+			assertEquals(10, updated.getData().length);
+			docs.remove(1);
+			assertNull(docs.get(1));
+			
+			//scanning evicts the cold documents, keeps the bound
+			for (int i = 2; i < 100; i++) {
+				assertEquals(i, docs.get(i).getId());
+				assertTrue(cache.weight() <= 11_000);
+			}
+			assertTrue(cache.evictions() > 80);
+			assertTrue(cache.size() <= 10);
+			
+			//a value loaded while its key is invalidated is not cached
+			ByteBuffer key = ByteBuffer.wrap(new byte[]{0, 0, 0, 5});
+			long stamp = cache.stamp(key);
+			cache.invalidate(key);
+			cache.put(key, document(5, 10), 10, stamp);
+			assertNull(cache.get(key));
+		}
+	}
+	
+	@Test
+	public void cacheupdates() {
+		ValueCache<byte[]> cache = new ValueCache<>(1 << 20);
+		ByteBuffer key = ByteBuffer.wrap(new byte[]{0, 0, 0, 1});
+		for (int i = 0; i < 100_000; i++) {
+			cache.put(key, new byte[10], 10, cache.stamp(key));
+			if (i % 2 == 0) cache.invalidate(key);
+		}
+		//far under the bound, the replaced entries are swept from the clock
+		assertEquals(1, cache.size());
+		assertTrue(cache.clock.size() <= 4);
+	}
+	
+	private static Document document(int id, int size) {
+		Document doc = new Document();
+		doc.setId(id);
+		doc.setSym(Integer.toString(id));
+		doc.setTimestamp(1000L * id);
+		byte[] data = new byte[size];
+		new Random(id).nextBytes(data);
+		doc.setData(data);
+		return doc;
+	}
+}
@@ -0,0 +1,180 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.panterose.narniaa.NarniaaTailer.ChangeVisitor;
+
+public class NarniaaTailerTest {
+
+	private static final int KEYS = 1000;
+	private static final int WRITES = 4000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void tail() throws IOException {
+		File test = folder.newFile("tail");
+		List<String> changes = new ArrayList<>();
+		ChangeVisitor visitor = new ChangeVisitor() {
+			@Override
+			public void put(byte[] key, long valueOffset, long valueSize) {
+				changes.add("put " + ByteBuffer.wrap(key).getInt() + " " + valueSize);
+			}
+
+			@Override
+			public void removed(byte[] key) {
+				changes.add("remove " + ByteBuffer.wrap(key).getInt());
+			}
+		};
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true);
+				NarniaaTailer tailer = new NarniaaTailer(test.toPath(), "cache")) {
+			assertFalse(tailer.next(visitor));
+			db.put(intKey(1), new byte[10]);
+			db.put(intKey(2), new byte[20]);
+			db.remove(intKey(1));
+			while (tailer.next(visitor));
+			assertEquals(3, changes.size());
+			assertEquals("put 1 10", changes.get(0));
+			assertEquals("remove 1", changes.get(2));
+			tailer.commit();
+			db.put(intKey(3), intKey(4));
+		}
+		try (NarniaaTailer tailer = new NarniaaTailer(test.toPath(), "cache")) {
+			changes.clear();
+			byte[][] value = new byte[1][];
+			assertTrue(tailer.next(new ChangeVisitor() {
+				@Override
+				public void put(byte[] key, long valueOffset, long valueSize) throws IOException {
+					value[0] = tailer.value(valueOffset, valueSize);
+				}
+
+				@Override
+				public void removed(byte[] key) {
+				}
+			}));
+			assertArrayEquals(intKey(4), value[0]);
+			assertFalse(tailer.next(visitor, 10, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	public void failedappend() throws IOException {
+		File test = folder.newFile("failedappend");
+		List<String> changes = new ArrayList<>();
+		ChangeVisitor visitor = new ChangeVisitor() {
+			@Override
+			public void put(byte[] key, long valueOffset, long valueSize) {
+				changes.add("put " + ByteBuffer.wrap(key).getInt());
+			}
+
+			@Override
+			public void removed(byte[] key) {
+				changes.add("remove " + ByteBuffer.wrap(key).getInt());
+			}
+		};
+		try (NarniaaDB db = new NarniaaDB(test.toPath(), 1024, true);
+				NarniaaTailer tailer = new NarniaaTailer(test.toPath())) {
+			db.put(intKey(1), new byte[10]);
+			//the interrupt fails the write of the record once its range of the log is taken
+			Thread.currentThread().interrupt();
+			try {
+				db.put(intKey(2), new byte[10]);
+				fail("wrote while interrupted");
+			} catch (ClosedByInterruptException e) {
+				assertTrue(Thread.interrupted());
+			}
+			//the range is padded, the tailer goes past it
+			while (tailer.next(visitor));
+			assertEquals(1, changes.size());
+			assertEquals(2 * db.entrySize(4), tailer.position());
+		}
+	}
+
+	/**
+	 * a second JVM writes, this one replicates to a follower as it goes.
+	 */
+	@Test
+	public void replicate() throws Exception {
+		File primary = folder.newFile("primary");
+		File follower = folder.newFile("follower");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 16).persistentIndex(false);
+		new NarniaaDB(primary.toPath(), config).close();
+
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process writer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				NarniaaTailerTest.class.getName(), primary.getAbsolutePath()).inheritIO().start();
+		try (NarniaaDB copy = new NarniaaDB(follower.toPath(), config);
+				NarniaaTailer tailer = new NarniaaTailer(primary.toPath())) {
+			boolean running = true;
+			while (running) {
+				running = writer.isAlive();
+				while (tailer.replicate(copy, 100) > 0);
+				Thread.sleep(1);
+			}
+			assertEquals(0, writer.waitFor());
+			while (tailer.replicate(copy, 100) > 0);
+
+			try (NarniaaDB db = new NarniaaDB(primary.toPath(), config)) {
+				assertEquals(db.size(), copy.size());
+				assertTrue(db.size() > 0);
+				for (int i = 0; i < KEYS; i++) {
+					assertArrayEquals(db.get(intKey(i)), copy.get(intKey(i)));
+				}
+			}
+		} finally {
+			writer.destroy();
+		}
+	}
+
+	/**
+	 * the writer of {@link #replicate()}: puts and removes from two threads.
+	 */
+	public static void main(String[] args) throws Exception {
+		Path path = Paths.get(args[0]);
+		try (NarniaaDB db = new NarniaaDB(path, new NarniaaConfig().blockSize(1 << 16).persistentIndex(false))) {
+			Thread[] threads = new Thread[2];
+			for (int t = 0; t < threads.length; t++) {
+				int first = t;
+				threads[t] = new Thread(() -> {
+					try {
+						for (int i = first; i < WRITES; i += threads.length) {
+							if (i % 7 == 0) {
+								db.remove(intKey(i % KEYS));
+							} else {
+								db.put(intKey(i % KEYS), intKey(i));
+							}
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+	}
+
+	private static byte[] intKey(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+}
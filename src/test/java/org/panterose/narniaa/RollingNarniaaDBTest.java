@@ -0,0 +1,102 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollingNarniaaDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void rolling() throws IOException {
+		File test = folder.newFolder("rolling");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 12).segmentBytes(10000);
+		try (RollingNarniaaDB db = new RollingNarniaaDB(test.toPath(), config)) {
+			assertEquals(1, db.segments());
+			for (int i = 0; i < 100; i++) {
+				db.put(intKey(i), value(i, 1000));
+			}
+			//the last put fills the tenth segment and starts an empty one
+			assertEquals(11, db.segments());
+			assertEquals(100, db.size());
+			assertArrayEquals(value(3, 1000), db.get(intKey(3)));
+			//the copy in the first segment is removed
+			assertTrue(db.put(intKey(3), value(42, 10)));
+			assertEquals(100, db.size());
+			assertArrayEquals(value(42, 10), db.get(intKey(3)));
+			assertEquals(9, db.segments[0].db.size());
+			assertTrue(db.remove(intKey(99)));
+			assertFalse(db.remove(intKey(99)));
+			assertNull(db.get(intKey(99)));
+		}
+		assertEquals(11, test.listFiles((dir, name) -> name.endsWith(".vdb")).length);
+
+		try (RollingNarniaaDB db = new RollingNarniaaDB(test.toPath(), config)) {
+			assertEquals(11, db.segments());
+			assertEquals(99, db.size());
+			assertArrayEquals(value(42, 10), db.get(intKey(3)));
+			assertArrayEquals(value(50, 1000), db.get(intKey(50)));
+			assertNull(db.get(intKey(99)));
+		}
+	}
+
+	@Test
+	public void retention() throws Exception {
+		File test = folder.newFolder("retention");
+		try (RollingNarniaaDB db = new RollingNarniaaDB(test.toPath(), new NarniaaConfig().blockSize(1 << 12)
+				.segmentBytes(10000).retentionBytes(35000))) {
+			for (int i = 0; i < 100; i++) {
+				db.put(intKey(i), value(i, 1000));
+			}
+			//the 3 last full segments and the current one fit in the retention
+			assertEquals(4, db.segments());
+			assertNull(db.get(intKey(69)));
+			assertArrayEquals(value(70, 1000), db.get(intKey(70)));
+			assertEquals(30, db.size());
+		}
+		assertEquals(4, test.listFiles((dir, name) -> name.endsWith(".vidx")).length);
+
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 12).retentionTime(500);
+		try (RollingNarniaaDB db = new RollingNarniaaDB(test.toPath(), config)) {
+			assertEquals(4, db.segments());
+			db.put(intKey(1000), value(1, 10));
+			Thread.sleep(600);
+			//the current segment is never dropped
+			assertEquals(3, db.expire());
+			assertEquals(1, db.segments());
+			assertEquals(1, db.size());
+			assertArrayEquals(value(1, 10), db.get(intKey(1000)));
+			db.roll();
+			assertEquals(2, db.segments());
+			Thread.sleep(600);
+			assertEquals(1, db.expire());
+			assertEquals(0, db.size());
+			db.put(intKey(1001), value(2, 10));
+			assertArrayEquals(value(2, 10), db.get(intKey(1001)));
+		}
+		assertEquals(1, test.listFiles((dir, name) -> name.endsWith(".vidx")).length);
+	}
+
+	private static byte[] value(int i, int size) {
+		byte[] value = new byte[size];
+		value[0] = (byte) i;
+		value[size - 1] = (byte) i;
+		return value;
+	}
+
+	private static byte[] intKey(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+}
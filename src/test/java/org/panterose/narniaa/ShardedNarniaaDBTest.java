@@ -0,0 +1,69 @@
+package org.panterose.narniaa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class ShardedNarniaaDBTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void shards() throws IOException {
+		File dir = new File(folder.getRoot(), "sharded");
+		NarniaaConfig config = new NarniaaConfig().blockSize(1 << 16);
+		try (ShardedNarniaaDB db = new ShardedNarniaaDB(dir.toPath(), 4, config)) {
+			assertEquals(4, db.shards());
+			for (int i = 0; i < 4000; i++) {
+				assertFalse(db.put(intKey(i), intKey(i * 2)));
+			}
+			assertTrue(db.put(intKey(7), intKey(0)));
+			assertTrue(db.remove(intKey(8)));
+			assertEquals(3999, db.size());
+			//keys are spread over all the shards
+			for (NarniaaDB shard : db.shards) {
+				assertTrue(shard.size() > 800);
+			}
+		}
+		assertTrue(new File(dir, "shard-3.vidx").exists());
+		
+		try (ShardedNarniaaDB db = new ShardedNarniaaDB(dir.toPath(), 4, config.persistentIndex(false))) {
+			assertEquals(3999, db.size());
+			assertArrayEquals(intKey(0), db.get(intKey(7)));
+			assertNull(db.get(intKey(8)));
+			assertArrayEquals(intKey(2 * 3999), db.get(intKey(3999)));
+			List<byte[]> values = db.getAll(Arrays.asList(intKey(3), intKey(8), intKey(7), intKey(1234)), true);
+			assertArrayEquals(intKey(6), values.get(0));
+			assertNull(values.get(1));
+			assertArrayEquals(intKey(0), values.get(2));
+			assertArrayEquals(intKey(2468), values.get(3));
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shardcount() throws IOException {
+		File dir = new File(folder.getRoot(), "count");
+		try (ShardedNarniaaDB db = new ShardedNarniaaDB(dir.toPath(), 2, new NarniaaConfig().blockSize(1024))) {
+			db.put(intKey(1), intKey(1));
+		}
+		new ShardedNarniaaDB(dir.toPath(), 3, new NarniaaConfig().blockSize(1024)).close();
+	}
+	
+	private static byte[] intKey(int i) {
+		return ByteBuffer.allocate(4).putInt(i).array();
+	}
+}